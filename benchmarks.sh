@@ -0,0 +1,18 @@
+#!/bin/sh
+# Builds and runs the JMH codec benchmarks with the GC profiler,
+# reporting ns/op and allocated bytes/op, and writes the results
+# to benchmarks/results.csv. Given a baseline .csv from an earlier
+# run, lists anything that got more than 10% worse and exits
+# non-zero. Other arguments go to JMH, e.g. a benchmark regex:
+#   ./benchmarks.sh baseline.csv Huffman
+DIR="$( cd "$( dirname "$0" )" && pwd )"
+case "$1" in
+  *.csv) BASELINE="$1"; shift;;
+esac
+mvn -f $DIR/pom.xml -q install || exit 1
+mvn -f $DIR/benchmarks/pom.xml -q package || exit 1
+JAR=$DIR/benchmarks/target/benchmarks.jar
+java -jar $JAR -prof gc -rf csv -rff $DIR/benchmarks/results.csv "$@" || exit 1
+if [ -n "$BASELINE" ]; then
+  java -cp $JAR snell.http2.benchmarks.Regressions $BASELINE $DIR/benchmarks/results.csv
+fi
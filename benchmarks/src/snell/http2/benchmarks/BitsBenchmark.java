@@ -0,0 +1,86 @@
+package snell.http2.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import snell.http2.utils.BitReader;
+import snell.http2.utils.BitWriter;
+
+/**
+ * BitReader and BitWriter on their own, over fields the width of
+ * Huffman codes and UTF-8 continuations. Scores are per field.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BitsBenchmark {
+
+  private static final int FIELDS = 256;
+
+  private final int[] values = new int[FIELDS];
+  private final int[] widths = new int[FIELDS];
+  private byte[] data;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(0);
+    int bits = 0;
+    for (int i = 0; i < FIELDS; i++) {
+      widths[i] = random.nextInt(4) == 0 ? 6 : 5 + random.nextInt(9);
+      values[i] = random.nextInt(1 << widths[i]);
+      bits += widths[i];
+    }
+    data = new byte[(bits + 7) / 8];
+    write();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(FIELDS)
+  public int write() {
+    BitWriter out = BitWriter.of(data);
+    for (int i = 0; i < FIELDS; i++)
+      out.writeBits(values[i], widths[i]);
+    return out.flush().length();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(FIELDS)
+  public int read() {
+    BitReader in = BitReader.of(data);
+    int sum = 0;
+    for (int i = 0; i < FIELDS; i++)
+      sum += in.readBits(widths[i]);
+    return sum;
+  }
+
+  /**
+   * The decoder's pattern: look at a byte, consume fewer bits
+   */
+  @Benchmark
+  @OperationsPerInvocation(FIELDS)
+  public int peekAndSkip() {
+    BitReader in = BitReader.of(data);
+    int sum = 0;
+    for (int i = 0; i < FIELDS; i++) {
+      sum += in.peekBits(8);
+      in.skipBits(widths[i]);
+    }
+    return sum;
+  }
+
+}
@@ -0,0 +1,162 @@
+package snell.http2.benchmarks;
+
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Header values to benchmark with, by kind. Generated values come
+ * from a fixed seed so every run, and every codec, sees the same
+ * strings.
+ */
+public enum HeaderValues {
+
+  /**
+   * Short tokens and lists: encodings, media types, cache
+   * directives and the like
+   */
+  TOKENS {
+    String[] generate(Random random) {
+      return new String[] {
+        "gzip", "gzip, deflate, br", "keep-alive", "close", "no-cache",
+        "max-age=0", "private, max-age=3600", "text/html; charset=utf-8",
+        "application/json", "*/*", "en-US,en;q=0.9", "bytes", "nginx",
+        "same-origin", "cors", "document", "?1", "1", "chunked",
+        "Accept-Encoding", "nosniff", "SAMEORIGIN", "https", "h2",
+        "text/css,*/*;q=0.1", "image/avif,image/webp,*/*", "trailers",
+        "public, max-age=31536000, immutable", "W/\"5e15-1a2b3c\"",
+        "Origin", "DENY", "strict-origin-when-cross-origin"
+      };
+    }
+  },
+
+  /**
+   * Request targets, with query strings
+   */
+  PATHS {
+    String[] generate(Random random) {
+      String[] words = {
+        "users", "orders", "products", "search", "static", "images",
+        "api", "v1", "v2", "account", "settings", "cart", "assets"
+      };
+      String[] values = new String[64];
+      for (int i = 0; i < values.length; i++) {
+        StringBuilder path = new StringBuilder();
+        int segments = 1 + random.nextInt(5);
+        for (int s = 0; s < segments; s++) {
+          path.append('/');
+          if (random.nextInt(4) == 0)
+            path.append(random.nextInt(1000000));
+          else
+            path.append(words[random.nextInt(words.length)]);
+        }
+        switch (random.nextInt(3)) {
+        case 0:
+          path.append(".").append(hex(random, 8)).append(".js");
+          break;
+        case 1:
+          path.append("?page=").append(random.nextInt(50))
+              .append("&sort=desc&q=")
+              .append(words[random.nextInt(words.length)])
+              .append('+')
+              .append(words[random.nextInt(words.length)]);
+          break;
+        }
+        values[i] = path.toString();
+      }
+      return values;
+    }
+  },
+
+  /**
+   * Analytics, session and preference cookies
+   */
+  COOKIES {
+    String[] generate(Random random) {
+      String[] values = new String[64];
+      for (int i = 0; i < values.length; i++) {
+        StringBuilder cookie = new StringBuilder();
+        cookie.append("_ga=GA1.2.")
+              .append(random.nextInt(Integer.MAX_VALUE)).append('.')
+              .append(1600000000 + random.nextInt(100000000));
+        cookie.append("; session_id=").append(hex(random, 32));
+        if (random.nextBoolean())
+          cookie.append("; csrftoken=").append(token(random, 32));
+        if (random.nextBoolean())
+          cookie.append("; theme=dark; lang=en-US");
+        values[i] = cookie.toString();
+      }
+      return values;
+    }
+  },
+
+  /**
+   * JWT bearer credentials, a few hundred bytes of base64
+   */
+  BEARER {
+    String[] generate(Random random) {
+      Base64.Encoder base64 = Base64.getUrlEncoder().withoutPadding();
+      String header = base64.encodeToString(
+        "{\"alg\":\"RS256\",\"typ\":\"JWT\"}".getBytes());
+      String[] values = new String[64];
+      for (int i = 0; i < values.length; i++) {
+        String claims =
+          "{\"sub\":\"" + random.nextInt(Integer.MAX_VALUE) +
+          "\",\"iss\":\"https://auth.example.com/\"" +
+          ",\"aud\":\"api\",\"scope\":\"read write\"" +
+          ",\"iat\":" + (1600000000 + random.nextInt(100000000)) +
+          ",\"exp\":" + (1700000000 + random.nextInt(100000000)) + "}";
+        byte[] signature = new byte[256];
+        random.nextBytes(signature);
+        values[i] =
+          "Bearer " + header + "." +
+          base64.encodeToString(claims.getBytes()) + "." +
+          base64.encodeToString(signature);
+      }
+      return values;
+    }
+  },
+
+  /**
+   * Text outside ASCII: Latin-1, Cyrillic, CJK and emoji
+   */
+  NON_ASCII {
+    String[] generate(Random random) {
+      return new String[] {
+        "naïve café",
+        "attachment; filename=\"résumé.pdf\"",
+        "München, Deutschland",
+        "Привет, мир",
+        "日本語のテキスト",
+        "中文标题 - 示例",
+        "São Paulo",
+        "👍 thanks 🎉",
+        "Ångström ± 0.5 µm",
+        "안녕하세요"
+      };
+    }
+  };
+
+  abstract String[] generate(Random random);
+
+  /**
+   * The values of this kind, the same on every call
+   */
+  public String[] strings() {
+    return generate(new Random(ordinal()));
+  }
+
+  private static String hex(Random random, int n) {
+    StringBuilder buf = new StringBuilder(n);
+    for (int i = 0; i < n; i++)
+      buf.append(Character.forDigit(random.nextInt(16), 16));
+    return buf.toString();
+  }
+
+  private static String token(Random random, int n) {
+    StringBuilder buf = new StringBuilder(n);
+    for (int i = 0; i < n; i++)
+      buf.append(Character.forDigit(random.nextInt(36), 36));
+    return buf.toString();
+  }
+
+}
@@ -0,0 +1,104 @@
+package snell.http2.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import snell.http2.headers.Huffman;
+import snell.http2.utils.OldHuffman2;
+
+/**
+ * Huffman against OldHuffman2, the codepoint based coder it
+ * replaced, on one header value per operation. Both use their
+ * request table. The old coders only have stream based entry
+ * points, so their numbers include the ByteArrayOutputStream.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HuffmanBenchmark {
+
+  @Param({"TOKENS", "PATHS", "COOKIES", "BEARER", "NON_ASCII"})
+  public HeaderValues kind;
+
+  private final Huffman huffman = Huffman.REQUEST_TABLE;
+  private final OldHuffman2 old_huffman = OldHuffman2.REQUEST_TABLE;
+  private String[] values;
+  private byte[][] encoded;
+  private byte[][] old_encoded;
+  private byte[] scratch;
+  private int next;
+
+  @Setup
+  public void setup()
+    throws IOException {
+    values = kind.strings();
+    encoded = new byte[values.length][];
+    old_encoded = new byte[values.length][];
+    int max = 0;
+    for (int i = 0; i < values.length; i++) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      huffman.encode(values[i], out);
+      encoded[i] = out.toByteArray();
+      out.reset();
+      old_huffman.encode(values[i], out);
+      old_encoded[i] = out.toByteArray();
+      max = Math.max(max, huffman.maxEncodedLength(values[i]));
+    }
+    scratch = new byte[max];
+  }
+
+  private int next() {
+    int i = next;
+    next = i + 1 == values.length ? 0 : i + 1;
+    return i;
+  }
+
+  @Benchmark
+  public int encode() {
+    return huffman.encode(values[next()], scratch, 0);
+  }
+
+  @Benchmark
+  public int encodedLength() {
+    return huffman.encodedLength(values[next()]);
+  }
+
+  @Benchmark
+  public String decode() {
+    byte[] data = encoded[next()];
+    return huffman.decode(data, 0, data.length);
+  }
+
+  @Benchmark
+  public byte[] oldEncode()
+    throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    old_huffman.encode(values[next()], out);
+    return out.toByteArray();
+  }
+
+  @Benchmark
+  public String oldDecode()
+    throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    old_huffman.decode(old_encoded[next()], out);
+    return out.toString("UTF-8");
+  }
+
+}
@@ -0,0 +1,76 @@
+package snell.http2.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import snell.http2.utils.OldHuffman;
+
+/**
+ * The original ISO-8859-1 coder, for comparison with
+ * HuffmanBenchmark. It has no codes beyond Latin-1, so there
+ * is no NON_ASCII run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OldHuffmanBenchmark {
+
+  @Param({"TOKENS", "PATHS", "COOKIES", "BEARER"})
+  public HeaderValues kind;
+
+  private final OldHuffman huffman = OldHuffman.REQUEST_TABLE;
+  private String[] values;
+  private byte[][] encoded;
+  private int next;
+
+  @Setup
+  public void setup()
+    throws IOException {
+    values = kind.strings();
+    encoded = new byte[values.length][];
+    for (int i = 0; i < values.length; i++) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      huffman.encode(values[i], out);
+      encoded[i] = out.toByteArray();
+    }
+  }
+
+  private int next() {
+    int i = next;
+    next = i + 1 == values.length ? 0 : i + 1;
+    return i;
+  }
+
+  @Benchmark
+  public byte[] encode()
+    throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    huffman.encode(values[next()], out);
+    return out.toByteArray();
+  }
+
+  @Benchmark
+  public String decode()
+    throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    huffman.decode(encoded[next()], out);
+    return out.toString("ISO-8859-1");
+  }
+
+}
@@ -0,0 +1,150 @@
+package snell.http2.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two JMH result files written with -rf csv and lists
+ * every benchmark that got worse: time per op, and bytes
+ * allocated per op when run with -prof gc. Exits 1 if there are
+ * any, so it can gate a build.
+ *
+ * <code><pre>
+ * java -cp benchmarks.jar snell.http2.benchmarks.Regressions \
+ *   baseline.csv results.csv [percent]
+ * </pre></code>
+ *
+ * A score counts as worse when it rose by more than the given
+ * percentage (default 10) and by more than the two runs' error
+ * bounds together. Benchmarks only in one file are ignored.
+ */
+public final class Regressions {
+
+  private static final String ALLOCATION = "gc.alloc.rate.norm";
+
+  private static final class Score {
+    final double score;
+    final double error;
+    final String unit;
+    Score(double score, double error, String unit) {
+      this.score = score;
+      this.error = error;
+      this.unit = unit;
+    }
+  }
+
+  public static void main(String... args)
+    throws IOException {
+    if (args.length < 2) {
+      System.err.println(
+        "Usage: Regressions baseline.csv results.csv [percent]");
+      System.exit(2);
+    }
+    double threshold =
+      (args.length > 2 ? Double.parseDouble(args[2]) : 10) / 100;
+    Map<String,Score> baseline = read(args[0]);
+    Map<String,Score> results = read(args[1]);
+    int worse = 0;
+    for (Map.Entry<String,Score> e : results.entrySet()) {
+      Score before = baseline.get(e.getKey());
+      Score after = e.getValue();
+      if (before == null || !before.unit.equals(after.unit))
+        continue;
+      double allowed = Math.max(
+        before.score * threshold,
+        before.error + after.error);
+      if (after.unit.equals("B/op"))
+        allowed = Math.max(allowed, 1); // rounding noise around 0
+      if (after.score - before.score > allowed) {
+        worse++;
+        System.out.println(
+          String.format(
+            "%s: %.3f -> %.3f %s (%+.1f%%)",
+            e.getKey(),
+            before.score,
+            after.score,
+            after.unit,
+            before.score == 0 ? 100 :
+              (after.score / before.score - 1) * 100));
+      }
+    }
+    System.out.println(
+      worse == 0 ?
+        "No regressions" :
+        worse + " regression(s)");
+    System.exit(worse == 0 ? 0 : 1);
+  }
+
+  /**
+   * Primary and allocation scores keyed by benchmark and params
+   */
+  private static Map<String,Score> read(String file)
+    throws IOException {
+    Map<String,Score> scores = new LinkedHashMap<String,Score>();
+    BufferedReader reader =
+      new BufferedReader(
+        new InputStreamReader(
+          new FileInputStream(file), "UTF-8"));
+    try {
+      List<String> header = split(reader.readLine());
+      int name = header.indexOf("Benchmark");
+      int score = header.indexOf("Score");
+      int error = header.indexOf("Score Error (99.9%)");
+      int unit = header.indexOf("Unit");
+      String line;
+      while ((line = reader.readLine()) != null) {
+        List<String> row = split(line);
+        String benchmark = row.get(name);
+        int secondary = benchmark.indexOf(':');
+        if (secondary > -1 && !benchmark.endsWith(ALLOCATION))
+          continue;
+        StringBuilder key = new StringBuilder(benchmark);
+        for (int i = 0; i < header.size(); i++)
+          if (header.get(i).startsWith("Param: "))
+            key.append(' ')
+               .append(header.get(i).substring(7))
+               .append('=')
+               .append(row.get(i));
+        scores.put(
+          key.toString(),
+          new Score(
+            number(row.get(score)),
+            number(row.get(error)),
+            row.get(unit)));
+      }
+    } finally {
+      reader.close();
+    }
+    return scores;
+  }
+
+  private static double number(String s) {
+    return s.isEmpty() || s.equals("NaN") ?
+      0 : Double.parseDouble(s);
+  }
+
+  private static List<String> split(String line) {
+    List<String> fields = new ArrayList<String>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (c == '"')
+        quoted = !quoted;
+      else if (c == ',' && !quoted) {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else
+        field.append(c);
+    }
+    fields.add(field.toString());
+    return fields;
+  }
+
+}
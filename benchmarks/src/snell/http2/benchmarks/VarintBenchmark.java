@@ -0,0 +1,137 @@
+package snell.http2.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import snell.http2.utils.IoUtils;
+import snell.http2.utils.PooledOutputStream;
+
+/**
+ * The uvarint codec, both the array returning int2uvarint and
+ * the allocation free put/writeUvarint, and reads from a stream
+ * and straight from a buffer. SHORT values take one byte
+ * (indexes, small counts), LENGTH two (string lengths), ANY up to
+ * five. Scores are per value.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class VarintBenchmark {
+
+  private static final int VALUES = 256;
+
+  public enum Range {
+    SHORT(1 << 7),
+    LENGTH(1 << 14),
+    ANY(0);
+    final int bound;
+    Range(int bound) {
+      this.bound = bound;
+    }
+  }
+
+  @Param({"SHORT", "LENGTH", "ANY"})
+  public Range range;
+
+  private final int[] values = new int[VALUES];
+  private byte[] encoded;
+  private byte[] scratch;
+
+  @Setup
+  public void setup()
+    throws IOException {
+    Random random = new Random(0);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < VALUES; i++) {
+      values[i] = range.bound > 0 ?
+        random.nextInt(range.bound) :
+        random.nextInt();
+      out.write(IoUtils.int2uvarint(values[i]));
+    }
+    encoded = out.toByteArray();
+    scratch = new byte[encoded.length];
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(VALUES)
+  public int encode() {
+    int n = 0;
+    for (int i = 0; i < VALUES; i++)
+      n += IoUtils.int2uvarint(values[i]).length;
+    return n;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(VALUES)
+  public int put() {
+    int off = 0;
+    for (int i = 0; i < VALUES; i++)
+      off = IoUtils.putUvarint(scratch, off, values[i]);
+    return off;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(VALUES)
+  public int write()
+    throws IOException {
+    PooledOutputStream out = new PooledOutputStream(encoded.length);
+    try {
+      for (int i = 0; i < VALUES; i++)
+        IoUtils.writeUvarint(out, values[i]);
+      return out.size();
+    } finally {
+      out.release();
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(VALUES)
+  public int decode()
+    throws IOException {
+    ByteArrayInputStream in = new ByteArrayInputStream(encoded);
+    int sum = 0;
+    for (int i = 0; i < VALUES; i++)
+      sum += IoUtils.uvarint2int(in);
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(VALUES)
+  public int decodeBuffer() {
+    ByteBuffer in = ByteBuffer.wrap(encoded);
+    int sum = 0;
+    for (int i = 0; i < VALUES; i++)
+      sum += IoUtils.uvarint2int(in);
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(VALUES)
+  public int size() {
+    int n = 0;
+    for (int i = 0; i < VALUES; i++)
+      n += IoUtils.size(values[i]);
+    return n;
+  }
+
+}
@@ -0,0 +1,6 @@
+#!/bin/sh
+# Trains Huffman tables on a header corpus read from stdin, in the
+# same format as dhe_compression_test.sh. Writes request.huff and
+# response.huff into the given directory (default: current).
+DIR="$( cd "$( dirname "$0" )" && pwd )"
+mvn -f $DIR/pom.xml -q exec:java -Dexec.mainClass="HuffmanTableGenerator" -Dexec.args="$1"
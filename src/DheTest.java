@@ -1,12 +1,16 @@
+import static com.google.common.base.Preconditions.checkState;
 import static snell.http2.utils.RangedIntegerSupplier.forAllEvenIntegers;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import snell.http2.frames.Frame;
 import snell.http2.frames.HeadersFrame;
 import snell.http2.frames.HeadersFrame.HeadersFrameBuilder;
+import snell.http2.headers.HeaderName;
 import snell.http2.headers.dhe.Dhe;
 import snell.http2.utils.RangedIntegerSupplier;
 
@@ -44,10 +48,89 @@ public class DheTest {
       
       HeadersFrame frame = 
         Frame.parse(in, decoder);
-      for (String key : frame) {
+      for (HeaderName key : frame) {
         System.out.println(key + " = " + frame.get(key));
       }
     }
+    
+    // more headers than fit in one block (128 groups of 32), then
+    // a small set to check both tables still agree
+    for (int count : new int[] {4200, 2}) {
+      HeadersFrameBuilder b =
+        HeadersFrame.make(encoder)
+        .streamId(stream_ids)
+        .fin();
+      for (int n = 0; n < count; n++)
+        b.set("x-h" + n, "v" + n);
+      ByteArrayOutputStream out = 
+        new ByteArrayOutputStream();
+      b.get()
+        .writeTo(out);
+      HeadersFrame frame = 
+        Frame.<HeadersFrame>parse(
+          new ByteArrayInputStream(out.toByteArray()), 
+          decoder);
+      int found = 0;
+      for (HeaderName key : frame) {
+        int n = Integer.parseInt(key.toString().substring(3));
+        checkState(n < count);
+        checkState(
+          frame.get(key).iterator().next().toString().equals("v" + n));
+        found++;
+      }
+      checkState(found == count, "decoded %s of %s", found, count);
+      System.out.println(count + " headers round trip");
+    }
+    
+    // more than fits in one frame goes out over several; a header 
+    // that can't fit at all is refused without touching the tables
+    for (int count : new int[] {10000, -1, 2}) {
+      HeadersFrameBuilder b =
+        HeadersFrame.make(encoder)
+        .streamId(stream_ids)
+        .fin();
+      for (int n = 0; n < count; n++)
+        b.set("x-s" + n, "value-" + (1000000000 + n));
+      if (count < 0)
+        b.set("x-big", new String(new char[0x10000]).replace('\0', 'x'));
+      List<HeadersFrame> frames;
+      try {
+        frames = b.get().split();
+        checkState(count >= 0);
+      } catch (IllegalArgumentException e) {
+        checkState(count < 0);
+        System.out.println("oversized header refused");
+        continue;
+      }
+      List<HeadersFrame> parts = 
+        new ArrayList<HeadersFrame>();
+      for (int f = 0; f < frames.size(); f++) {
+        ByteArrayOutputStream out = 
+          new ByteArrayOutputStream();
+        frames.get(f).writeTo(out);
+        checkState(out.size() <= Frame.HEADER_SIZE + Frame.DEFAULT_MAX_SIZE);
+        HeadersFrame frame = 
+          Frame.<HeadersFrame>parse(
+            new ByteArrayInputStream(out.toByteArray()), 
+            decoder);
+        checkState(frame.fin() == (f == frames.size() - 1));
+        checkState(frame.moreHeaders() == (f < frames.size() - 1));
+        parts.add(frame);
+      }
+      HeadersFrame frame = HeadersFrame.join(parts);
+      checkState(frame.fin() && !frame.moreHeaders());
+      int found = 0;
+      for (HeaderName key : frame) {
+        int n = Integer.parseInt(key.toString().substring(3));
+        checkState(
+          frame.get(key).iterator().next().toString()
+            .equals("value-" + (1000000000 + n)));
+        found++;
+      }
+      checkState(found == count, "decoded %s of %s", found, count);
+      System.out.println(
+        count + " headers in " + frames.size() + " frames");
+    }
 
   }
   
@@ -0,0 +1,139 @@
+import static com.google.common.base.Throwables.propagate;
+
+import static snell.http2.utils.MiscUtilities.httpDateToJodaTime;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.collect.ImmutableSet;
+
+import snell.http2.headers.Huffman;
+import snell.http2.headers.HuffmanTrainer;
+
+/**
+ * Trains request and response Huffman tables on a captured header
+ * corpus, read from stdin in the same format CompressionTest uses,
+ * and writes them as request.huff and response.huff into the
+ * directory given as the first argument (default "."). The tables
+ * can be loaded with Huffman.load() and handed to Dhe.
+ *
+ * Only values that would be sent as strings are counted; numbers
+ * and dates have their own encodings.
+ */
+public final class HuffmanTableGenerator {
+
+  private static final ImmutableSet<String> NUMS =
+    ImmutableSet.of(
+      "content-length",
+      "max-forwards",
+      "age"
+    );
+
+  private static final ImmutableSet<String> DATES =
+    ImmutableSet.of(
+      "date",
+      "last-modified",
+      "if-modified-since",
+      "if-unmodified-since",
+      "retry-after",
+      "expires");
+
+  public static void main(String... args) {
+    try {
+      File dir = new File(args.length > 0 ? args[0] : ".");
+      List<String> req = new ArrayList<String>();
+      List<String> res = new ArrayList<String>();
+      read(req, res);
+      write(req, Huffman.REQUEST_TABLE, new File(dir, "request.huff"));
+      write(res, Huffman.RESPONSE_TABLE, new File(dir, "response.huff"));
+    } catch (Throwable t) {
+      t.printStackTrace();
+      throw propagate(t);
+    }
+  }
+
+  private static void read(
+    List<String> req,
+    List<String> res)
+      throws IOException {
+    BufferedReader reader =
+      new BufferedReader(
+        new InputStreamReader(
+          System.in, "ISO-8859-1"));
+    List<String> values = null;
+    String line = null;
+    while((line = reader.readLine()) != null) {
+      if (line.trim().length() == 0) {
+        values = null;
+        continue;
+      }
+      if (values == null) {
+        String[] tokens = line.split("\\s",3);
+        if (tokens[0].startsWith("HTTP")) {
+          values = res;
+        } else {
+          values = req;
+          values.add(tokens[0].toLowerCase());
+          if (tokens.length > 1)
+            values.add(tokens[1]);
+        }
+      } else {
+        int i = line.indexOf(':', 1);
+        if (i > -1 && i + 2 <= line.length()) {
+          String key = line.substring(0,i);
+          String val = line.substring(i+2).trim();
+          if (!isNumber(key, val) && !isDate(key, val))
+            values.add(val);
+        }
+      }
+    }
+  }
+
+  private static boolean isNumber(String key, String val) {
+    return (NUMS.contains(key) || DATES.contains(key)) &&
+      val.matches("\\d+");
+  }
+
+  private static boolean isDate(String key, String val) {
+    if (!DATES.contains(key))
+      return false;
+    try {
+      httpDateToJodaTime.apply(val);
+      return true;
+    } catch (Throwable t) {
+      return false;
+    }
+  }
+
+  private static void write(
+    List<String> values,
+    Huffman current,
+    File file)
+      throws IOException {
+    HuffmanTrainer trainer = HuffmanTrainer.make();
+    for (String value : values)
+      trainer.add(value);
+    Huffman trained = trainer.get();
+    long before = 0, after = 0;
+    for (String value : values) {
+      before += current.encodedLength(value);
+      after += trained.encodedLength(value);
+    }
+    OutputStream out = new FileOutputStream(file);
+    try {
+      trained.store(out);
+    } finally {
+      out.close();
+    }
+    System.out.println(
+      String.format(
+        "%s: %d values, %d bytes with the built in table, %d trained",
+        file, values.size(), before, after));
+  }
+}
@@ -1,12 +1,24 @@
 package snell.http2.frames;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static java.lang.Math.min;
+import static java.nio.channels.Channels.newChannel;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Iterator;
 
+import snell.http2.headers.HeaderSerializer;
+
 import static com.google.common.base.Throwables.propagate;
 
 public final class DataFrame 
@@ -66,6 +78,147 @@ public final class DataFrame
       };
   }
   
+  /**
+   * Produces DATA frames for a region of a file without copying
+   * the file content onto the heap. When the frames are written 
+   * to a channel the payload is sent with FileChannel.transferTo
+   * directly after the 8-byte frame header.
+   */
+  public static Iterable<DataFrame> produce(
+    final FileChannel file,
+    final int stream_id) 
+      throws IOException {
+    return produce(
+      file,
+      0,
+      file.size(),
+      DEFAULT_MAX_SIZE,
+      stream_id);
+  }
+  
+  public static Iterable<DataFrame> produce(
+    final FileChannel file,
+    final long position,
+    final long count,
+    int size,
+    final int stream_id) {
+      checkNotNull(file);
+      checkArgument(position >= 0 && count >= 0);
+      final int s = 
+        min(size, DEFAULT_MAX_SIZE);
+      return new Iterable<DataFrame>() {
+        public Iterator<DataFrame> iterator() {
+          return new RegionIterator(file,position,count,s,stream_id,false);
+        }
+      };
+  }
+  
+  /**
+   * Produces DATA frames whose payloads are slices of a memory 
+   * mapping of the file region. The region is mapped in windows 
+   * of MAP_WINDOW frames at a time.
+   */
+  public static Iterable<DataFrame> produceMapped(
+    final FileChannel file,
+    final int stream_id) 
+      throws IOException {
+    return produceMapped(
+      file,
+      0,
+      file.size(),
+      DEFAULT_MAX_SIZE,
+      stream_id);
+  }
+  
+  public static Iterable<DataFrame> produceMapped(
+    final FileChannel file,
+    final long position,
+    final long count,
+    int size,
+    final int stream_id) {
+      checkNotNull(file);
+      checkArgument(position >= 0 && count >= 0);
+      final int s = 
+        min(size, DEFAULT_MAX_SIZE);
+      return new Iterable<DataFrame>() {
+        public Iterator<DataFrame> iterator() {
+          return new RegionIterator(file,position,count,s,stream_id,true);
+        }
+      };
+  }
+  
+  private static final int MAP_WINDOW = 256;
+  
+  private static final class RegionIterator 
+    implements Iterator<DataFrame> {
+    private final FileChannel file;
+    private final long end;
+    private final int size;
+    private final int stream_id;
+    private final boolean mapped;
+    private long position;
+    private MappedByteBuffer window;
+    RegionIterator(
+      FileChannel file, 
+      long position, 
+      long count, 
+      int size, 
+      int stream_id, 
+      boolean mapped) {
+      this.file = file;
+      this.position = position;
+      this.end = position + count;
+      this.size = size;
+      this.stream_id = stream_id;
+      this.mapped = mapped;
+    }
+    public boolean hasNext() {
+      return position < end;
+    }
+    public DataFrame next() {
+      if (!hasNext())
+        return null;
+      try {
+        int c = (int)min(size, end - position);
+        DataFrameBuilder builder = 
+          make().streamId(stream_id);
+        if (mapped) {
+          if (window == null || window.remaining() < c)
+            window = file.map(
+              MapMode.READ_ONLY, 
+              position, 
+              min((long)size * MAP_WINDOW, end - position));
+          ByteBuffer slice = window.slice();
+          slice.limit(c);
+          window.position(window.position() + c);
+          builder.payload = slice;
+        } else {
+          builder.region(file, position, c);
+        }
+        position += c;
+        return builder.get();
+      } catch (Throwable t) {
+        throw propagate(t);
+      }
+    }
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+  
+  static final FrameCodec<DataFrame> CODEC = 
+    new FrameCodec<DataFrame>() {
+      public DataFrame decode(
+        byte type,
+        byte flags,
+        int stream_id,
+        ByteBuffer payload,
+        HeaderSerializer ser)
+          throws IOException {
+        return new DataFrame(flags, stream_id, payload);
+      }
+  };
+  
   public static DataFrameBuilder make() {
     return new DataFrameBuilder();
   }
@@ -73,6 +226,9 @@ public final class DataFrame
   public static final class DataFrameBuilder 
     extends FrameBuilder<DataFrame,DataFrameBuilder> {
     
+    private FileChannel file;
+    private long file_pos;
+    
     protected DataFrameBuilder() {
       super(TYPE);
     }
@@ -88,6 +244,39 @@ public final class DataFrame
       return new DataFrame(this);
     }
     
+    /**
+     * Uses count bytes of the file starting at position as the
+     * payload. The content is not read until the frame is written.
+     */
+    public DataFrameBuilder region(
+      FileChannel file, 
+      long position, 
+      int count) {
+      checkNotNull(file);
+      checkArgument(position >= 0);
+      checkArgument(inRange(count,0,DEFAULT_MAX_SIZE));
+      this.file = file;
+      this.file_pos = position;
+      this.length = count;
+      return this;
+    }
+    
+    /**
+     * Uses a read-only memory mapping of the file region 
+     * as the payload.
+     */
+    public DataFrameBuilder map(
+      FileChannel file,
+      long position,
+      int count) 
+        throws IOException {
+      checkNotNull(file);
+      checkArgument(inRange(count,0,DEFAULT_MAX_SIZE));
+      this.payload = 
+        file.map(MapMode.READ_ONLY, position, count);
+      return this;
+    }
+    
     public DataFrameBuilder fill(
       InputStream in) 
         throws IOException {
@@ -147,14 +336,141 @@ public final class DataFrame
     }
   }
   
+  private final FileChannel file;
+  private final long file_pos;
+  
   protected DataFrame(
     DataFrameBuilder builder) {
     super(builder);
+    this.file = builder.file;
+    this.file_pos = builder.file_pos;
+  }
+  
+  private DataFrame(
+    byte flags,
+    int stream_id,
+    ByteBuffer payload) {
+    super(TYPE, flags, stream_id, 0, payload);
+    this.file = null;
+    this.file_pos = 0;
+  }
+  
+  private DataFrame(
+    DataFrame source,
+    byte flags,
+    int offset,
+    int count) {
+    super(source, flags, offset, count);
+    this.file = source.file;
+    this.file_pos = source.file_pos + offset;
+  }
+  
+  /**
+   * Splits the frame in two at n bytes into the payload, e.g. to 
+   * fit a flow control window. Only the second part keeps the FIN 
+   * flag. Each part holds its own reference to the payload, so 
+   * this frame must still be released.
+   */
+  public DataFrame[] split(int n) {
+    checkArgument(n > 0 && n < length);
+    return new DataFrame[] {
+      new DataFrame(this, (byte)(flags & ~FIN_FLAG), 0, n),
+      new DataFrame(this, flags, n, length - n)
+    };
+  }
+  
+  /**
+   * True if the payload is an unread file region
+   */
+  public boolean isFileRegion() {
+    return file != null;
+  }
+  
+  @Override
+  ByteBuffer content() 
+    throws IOException {
+    return file != null ?
+      file.map(MapMode.READ_ONLY, file_pos, length) :
+      super.content();
+  }
+  
+  @Override
+  public void writeTo(
+    OutputStream out) 
+      throws IOException {
+    if (file == null) {
+      super.writeTo(out);
+      return;
+    }
+    out.write(header().array());
+    transfer(newChannel(out));
+  }
+  
+  /**
+   * Sends a file region as the header followed by transferTo. 
+   * As for any frame, the channel must be blocking.
+   */
+  @Override
+  public long writeTo(
+    GatheringByteChannel out) 
+      throws IOException {
+    checkBlocking(out);
+    if (file == null)
+      return super.writeTo(out);
+    ByteBuffer head = header();
+    long n = 0;
+    while(head.hasRemaining())
+      n += out.write(head);
+    return n + transfer(out);
+  }
+  
+  private ByteBuffer header() {
+    ByteBuffer head = 
+      ByteBuffer.allocate(HEADER_SIZE);
+    writePrefix(head, EMPTY);
+    head.flip();
+    return head;
+  }
+  
+  private long transfer(
+    WritableByteChannel out) 
+      throws IOException {
+    long p = 0;
+    while (p < length)
+      p += transfer(out, p);
+    return length;
+  }
+  
+  /**
+   * A single transferTo of the file region from offset on. 
+   * Returns the bytes sent, 0 if the channel took none.
+   */
+  long transfer(
+    WritableByteChannel out,
+    long offset)
+      throws IOException {
+    long n = file.transferTo(
+      file_pos + offset, length - offset, out);
+    if (n == 0 && file_pos + offset >= file.size())
+      throw new IOException(); // region runs past end of file
+    return n;
   }
 
   @Override
   public int size() {
     return super.size();
   }
+  
+  @Override
+  public ByteBuffer payload() {
+    if (file != null) {
+      try {
+        return content().asReadOnlyBuffer();
+      } catch (IOException e) {
+        throw propagate(e);
+      }
+    }
+    return super.payload();
+  }
 
 }
@@ -2,79 +2,136 @@ package snell.http2.frames;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.io.ByteStreams.readFully;
+import static com.google.common.io.ByteStreams.skipFully;
 import static java.nio.channels.Channels.newInputStream;
-import static snell.http2.utils.IoUtils.int2uvarint;
-import static snell.http2.utils.IoUtils.long2uvarint;
+import static snell.http2.utils.IoUtils.writeUvarint;
 import static snell.http2.utils.IoUtils.read32;
 import static snell.http2.utils.IoUtils.write32;
 import static snell.http2.utils.IoUtils.write16;
 import static snell.http2.utils.IoUtils.writeChar;
 import static java.lang.Math.max;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
 
 import snell.http2.headers.HeaderSerializer;
+import snell.http2.utils.PooledBuffer;
+import snell.http2.utils.PooledOutputStream;
 
 import com.google.common.base.Supplier;
-import com.google.common.primitives.Shorts;
 
 public abstract class Frame<F extends Frame<F>> {
 
-  @SuppressWarnings({ "unchecked", "rawtypes" })
   public static <F extends Frame<F>>F parse(InputStream in, HeaderSerializer ser)
     throws IOException {
-    byte[] header = 
-      new byte[4];
-    int r = in.read(header);
-    if (r < 4)
-      throw new IOException();
-    int length = Shorts.fromByteArray(header);
-    byte type = header[2];
-    byte flags = header[3];
-    int stream_id = read32(in);
-    FrameBuilder builder = null;
-
-    switch(type) {
-    case DataFrame.TYPE:
-      builder = DataFrame.make();
-      break;
-    case GoAwayFrame.TYPE:
-      builder = GoAwayFrame.make();
-      break;
-    case HeadersFrame.TYPE1:
-      builder = HeadersFrame.make(true,ser);
-      break;
-    case HeadersFrame.TYPE8:
-      builder = HeadersFrame.make(false,ser);
-      break;
-    case PingFrame.TYPE:
-      builder = PingFrame.make();
-      break;
-    case RstStreamFrame.TYPE:
-      builder = RstStreamFrame.make();
-      break;
-    case SettingsFrame.TYPE:
-      builder = SettingsFrame.make();
-      break;
-    case WindowUpdateFrame.TYPE:
-      builder = WindowUpdateFrame.make();
-      break;
-    case PushPromiseFrame.TYPE:
-      builder = PushPromiseFrame.make(ser);
-      break;
+    return Frame.<F>parse(in, ser, FrameCodecRegistry.defaults());
+  }
+  
+  /**
+   * Reads the next frame from the stream. Frames of a type with 
+   * no registered codec are read past and skipped.
+   */
+  @SuppressWarnings("unchecked")
+  public static <F extends Frame<F>>F parse(
+    InputStream in, 
+    HeaderSerializer ser, 
+    FrameCodecRegistry codecs)
+      throws IOException {
+    checkNotNull(in);
+    checkNotNull(codecs);
+    ByteBuffer header = 
+      ByteBuffer.allocate(HEADER_SIZE);
+    while(true) {
+      readFully(in, header.array());
+      int length = lengthOf(header);
+      byte type = header.get(2);
+      byte flags = header.get(3);
+      int stream_id = header.getInt(4);
+      if (!codecs.isRegistered(type)) {
+        skipFully(in, length);
+        continue;
+      }
+      byte[] payload = 
+        new byte[length];
+      readFully(in, payload);
+      return (F)codecs.decode(
+        type, 
+        flags, 
+        stream_id, 
+        ByteBuffer.wrap(payload), 
+        ser);
     }
-    builder.parseRest(
-      length, 
+  }
+  
+  public static <F extends Frame<F>>F parse(ByteBuffer in, HeaderSerializer ser)
+    throws IOException {
+    return Frame.<F>parse(in, ser, FrameCodecRegistry.defaults());
+  }
+  
+  /**
+   * Parses a single complete frame from the given buffer. The 
+   * buffer's position is advanced past the frame. Opaque payloads
+   * (e.g. DATA) are slices of the input buffer rather than copies,
+   * so the buffer must not be reused while the frame is live.
+   * Returns null if the frame's type has no registered codec; 
+   * the frame is skipped.
+   */
+  @SuppressWarnings("unchecked")
+  public static <F extends Frame<F>>F parse(
+    ByteBuffer in, 
+    HeaderSerializer ser, 
+    FrameCodecRegistry codecs)
+      throws IOException {
+    checkNotNull(in);
+    checkNotNull(codecs);
+    if (in.remaining() < HEADER_SIZE)
+      throw new IOException();
+    int pos = in.position();
+    int length = lengthOf(in);
+    byte type = in.get(pos + 2);
+    byte flags = in.get(pos + 3);
+    int stream_id = in.getInt(pos + 4);
+    if (in.remaining() < HEADER_SIZE + length)
+      throw new IOException();
+    in.position(pos + HEADER_SIZE + length);
+    if (!codecs.isRegistered(type))
+      return null;
+    ByteBuffer payload = in.duplicate();
+    payload.position(pos + HEADER_SIZE);
+    payload.limit(pos + HEADER_SIZE + length);
+    return (F)codecs.decode(
       type, 
       flags, 
       stream_id, 
-      in);
-    return (F)builder.get();
+      payload.slice(), 
+      ser);
+  }
+  
+  /**
+   * Reads the payload length from the frame header that starts 
+   * at the buffer's current position, without consuming it
+   */
+  static int lengthOf(ByteBuffer header) {
+    return header.getShort(header.position()) & 0xFFFF;
+  }
+  
+  /**
+   * Used by codecs of fixed size frames to reject short payloads
+   */
+  static ByteBuffer checkPayload(
+    ByteBuffer payload, 
+    int size) 
+      throws IOException {
+    if (payload.remaining() < size)
+      throw new IOException();
+    return payload;
   }
   
   @SuppressWarnings("unchecked")
@@ -85,8 +142,9 @@ public abstract class Frame<F extends Frame<F>> {
     protected byte type;
     protected byte flags;
     protected int stream_id;
-    protected final ByteArrayOutputStream buffer = 
-      new ByteArrayOutputStream();
+    protected final PooledOutputStream buffer = 
+      new PooledOutputStream();
+    protected ByteBuffer payload;
     
     protected FrameBuilder(byte type) {
       type(type);
@@ -202,10 +260,7 @@ public abstract class Frame<F extends Frame<F>> {
       InputStream in, 
       int c) 
         throws IOException {
-      byte[] buf = new byte[c];
-      int n = in.read(buf);
-      if (n > -1)
-        put(buf,0,n);
+      int n = buffer.readFrom(in, c);
       return n >= c;
     }
     
@@ -233,12 +288,12 @@ public abstract class Frame<F extends Frame<F>> {
     }
     
     protected B putUvarint(int i) throws IOException {
-      buffer().write(int2uvarint(i));
+      writeUvarint(buffer(), i);
       return (B) this;
     }
     
     protected B putUvarint(long i) throws IOException {
-      buffer().write(long2uvarint(i));
+      writeUvarint(buffer(), i);
       return (B) this;
     }
     
@@ -249,23 +304,105 @@ public abstract class Frame<F extends Frame<F>> {
   }
   
   public static final int DEFAULT_MAX_SIZE = 0xFFFF;
-  private static final byte FIN_FLAG = 0x1;
+  public static final int HEADER_SIZE = 8;
+  static final byte FIN_FLAG = 0x1;
   
   protected final int length;
   protected final byte type;
   protected final byte flags;
   protected final int opaque_id;
-  protected final byte[] buffer;
+  protected final ByteBuffer buffer;
+  private final PooledBuffer pooled;
   
+  /**
+   * Frames built (rather than parsed) take ownership of the 
+   * builder's pooled buffer, which is returned by release()
+   */
   protected Frame(
     FrameBuilder<?,?> builder) {
     this.type = builder.type;
     this.flags = builder.flags;
     this.opaque_id = builder.stream_id;
-    this.buffer = builder.buffer.toByteArray();
-    this.length = max(builder.length,this.buffer.length);
+    if (builder.payload != null) {
+      this.pooled = null;
+      this.buffer = builder.payload.slice();
+    } else {
+      this.pooled = builder.buffer.detach();
+      this.buffer = pooled != null ?
+        pooled.buffer().slice() : 
+        EMPTY;
+    }
+    this.length = max(builder.length,this.buffer.remaining());
+    checkArgument(this.length <= DEFAULT_MAX_SIZE);
+  }
+  
+  /**
+   * Frames produced by a FrameCodec. The payload, if any, is 
+   * kept as-is rather than copied.
+   */
+  protected Frame(
+    byte type,
+    byte flags,
+    int stream_id,
+    int length,
+    ByteBuffer payload) {
+    this.type = type;
+    this.flags = flags;
+    this.opaque_id = stream_id;
+    this.pooled = null;
+    this.buffer = payload != null ?
+      payload.slice() : 
+      EMPTY;
+    this.length = max(length,this.buffer.remaining());
     checkArgument(this.length <= DEFAULT_MAX_SIZE);
   }
+  
+  /**
+   * A frame carrying count bytes of the source frame's payload,
+   * starting at offset. Takes its own reference to the source's
+   * pooled buffer.
+   */
+  Frame(
+    Frame<?> source,
+    byte flags,
+    int offset,
+    int count) {
+    this.type = source.type;
+    this.flags = flags;
+    this.opaque_id = source.opaque_id;
+    this.length = count;
+    if (source.buffer.remaining() >= offset + count) {
+      ByteBuffer buf = source.buffer.duplicate();
+      buf.position(buf.position() + offset);
+      buf.limit(buf.position() + count);
+      this.buffer = buf.slice();
+    } else {
+      this.buffer = EMPTY;
+    }
+    this.pooled = source.pooled;
+    if (pooled != null)
+      pooled.retain();
+  }
+  
+  static final ByteBuffer EMPTY = 
+    ByteBuffer.allocate(0);
+  
+  /**
+   * Adds a reference to the frame's pooled payload, if any
+   */
+  public void retain() {
+    if (pooled != null)
+      pooled.retain();
+  }
+  
+  /**
+   * Drops a reference to the frame's pooled payload. Once the 
+   * last reference is gone the frame must not be written again.
+   */
+  public void release() {
+    if (pooled != null)
+      pooled.release();
+  }
     
   public boolean fin() {
     return flag(FIN_FLAG);
@@ -287,6 +424,13 @@ public abstract class Frame<F extends Frame<F>> {
     return length;
   }
   
+  /**
+   * Read-only view of the opaque payload carried by this frame
+   */
+  protected ByteBuffer payload() {
+    return buffer.asReadOnlyBuffer();
+  }
+  
   public void writeTo(
     OutputStream out) 
       throws IOException {
@@ -303,10 +447,145 @@ public abstract class Frame<F extends Frame<F>> {
     if (buffer != null)
       out.write(buffer);
     else
-      out.write(this.buffer);
+      write(out,this.buffer);
     writeRest(out);
   }
   
+  /**
+   * Writes the complete frame into the given buffer, which must
+   * have at least HEADER_SIZE + length bytes remaining.
+   */
+  public void writeTo(
+    ByteBuffer out)
+      throws IOException {
+    checkNotNull(out);
+    ByteBuffer content = content();
+    writePrefix(out,content);
+    out.put(content);
+    writeRest(out);
+  }
+  
+  /**
+   * Writes the complete frame using a single gathering write 
+   * where possible. The payload is handed to the channel 
+   * directly, only the header and any trailing fixed fields 
+   * are copied into a small scratch buffer. The channel must be
+   * blocking; a non-blocking one goes through FrameWriter, which
+   * keeps what the channel didn't take for the next flush.
+   */
+  public long writeTo(
+    GatheringByteChannel out)
+      throws IOException {
+    checkBlocking(out);
+    return writeFully(out,buffers());
+  }
+  
+  static void checkBlocking(
+    Channel out) {
+    checkNotNull(out);
+    checkArgument(
+      !(out instanceof SelectableChannel) || 
+      ((SelectableChannel)out).isBlocking(),
+      "non-blocking channel, use a FrameWriter");
+  }
+  
+  protected ByteBuffer[] buffers() 
+    throws IOException {
+    return buffers(content());
+  }
+  
+  ByteBuffer[] buffers(ByteBuffer content) 
+    throws IOException {
+    ByteBuffer head = 
+      ByteBuffer.allocate(prefixSize());
+    writePrefix(head,content);
+    head.flip();
+    ByteBuffer rest = 
+      ByteBuffer.allocate(restSize(content));
+    writeRest(rest);
+    rest.flip();
+    return new ByteBuffer[] {head,content,rest};
+  }
+  
+  protected static long writeFully(
+    GatheringByteChannel out, 
+    ByteBuffer[] bufs) 
+      throws IOException {
+    long n = 0;
+    while(remaining(bufs) > 0)
+      n += out.write(bufs);
+    return n;
+  }
+  
+  private static long remaining(ByteBuffer[] bufs) {
+    long n = 0;
+    for (ByteBuffer buf : bufs)
+      n += buf.remaining();
+    return n;
+  }
+  
+  /**
+   * The frame body that precedes any trailing fixed fields, 
+   * either freshly encoded (HEADERS) or the retained payload.
+   */
+  ByteBuffer content() 
+    throws IOException {
+    byte[] buffer = preWrite();
+    if (buffer != null) {
+      checkArgument(buffer.length <= DEFAULT_MAX_SIZE);
+      return ByteBuffer.wrap(buffer);
+    }
+    return this.buffer.duplicate();
+  }
+  
+  int restSize(ByteBuffer content) {
+    return max(0, length - content.remaining());
+  }
+  
+  /**
+   * Number of bytes written ahead of the frame content 
+   */
+  int prefixSize() {
+    return HEADER_SIZE;
+  }
+  
+  void writePrefix(
+    ByteBuffer out, 
+    ByteBuffer content) {
+    writeHeader(out,content);
+  }
+  
+  private void writeHeader(
+    ByteBuffer out, 
+    ByteBuffer content) {
+    int length = 
+      max(this.length, content.remaining());
+    out.putShort((short)length);
+    out.put(type);
+    out.put(flags);
+    out.putInt(opaque_id);
+  }
+  
+  private static void write(
+    OutputStream out, 
+    ByteBuffer buf) 
+      throws IOException {
+    if (buf.hasArray()) {
+      out.write(
+        buf.array(), 
+        buf.arrayOffset() + buf.position(), 
+        buf.remaining());
+    } else {
+      ByteBuffer dup = buf.duplicate();
+      byte[] chunk = new byte[Math.min(dup.remaining(),4096)];
+      while(dup.hasRemaining()) {
+        int c = Math.min(chunk.length, dup.remaining());
+        dup.get(chunk,0,c);
+        out.write(chunk,0,c);
+      }
+    }
+  }
+  
   protected byte[] preWrite()
     throws IOException {
     return null;
@@ -315,4 +594,7 @@ public abstract class Frame<F extends Frame<F>> {
   protected void writeRest(OutputStream out)
     throws IOException {}
   
-}
+  protected void writeRest(ByteBuffer out)
+    throws IOException {}
+  
+}
\ No newline at end of file
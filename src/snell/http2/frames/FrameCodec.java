@@ -0,0 +1,24 @@
+package snell.http2.frames;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import snell.http2.headers.HeaderSerializer;
+
+/**
+ * Decodes the payload of one frame type. Codecs are registered
+ * with a FrameCodecRegistry and shared by every connection, so
+ * they must be stateless. The payload buffer holds exactly the
+ * frame's payload; opaque frames may keep a reference to it.
+ */
+public interface FrameCodec<F extends Frame<F>> {
+
+  F decode(
+    byte type,
+    byte flags,
+    int stream_id,
+    ByteBuffer payload,
+    HeaderSerializer ser)
+      throws IOException;
+
+}
@@ -0,0 +1,102 @@
+package snell.http2.frames;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import snell.http2.headers.HeaderSerializer;
+
+/**
+ * Maps the frame type byte to the codec used to decode it. Lookup
+ * is a single array index; registration copies the table so it
+ * can happen while connections are decoding. Frames of a type
+ * with no registered codec are skipped by the parsers.
+ *
+ * The shared defaults() registry holds the standard frame types.
+ * Extension and experimental types can be added to it at startup,
+ * or to a copy() for use by specific connections.
+ */
+public final class FrameCodecRegistry {
+
+  private static final FrameCodecRegistry DEFAULTS =
+    standard();
+
+  public static FrameCodecRegistry defaults() {
+    return DEFAULTS;
+  }
+
+  /**
+   * A new registry holding only the standard frame types
+   */
+  public static FrameCodecRegistry standard() {
+    return new FrameCodecRegistry()
+      .register(DataFrame.TYPE, DataFrame.CODEC)
+      .register(HeadersFrame.TYPE1, HeadersFrame.CODEC)
+      .register(RstStreamFrame.TYPE, RstStreamFrame.CODEC)
+      .register(SettingsFrame.TYPE, SettingsFrame.CODEC)
+      .register(PushPromiseFrame.TYPE, PushPromiseFrame.CODEC)
+      .register(PingFrame.TYPE, PingFrame.CODEC)
+      .register(GoAwayFrame.TYPE, GoAwayFrame.CODEC)
+      .register(HeadersFrame.TYPE8, HeadersFrame.CODEC)
+      .register(WindowUpdateFrame.TYPE, WindowUpdateFrame.CODEC);
+  }
+
+  private volatile FrameCodec<?>[] codecs =
+    new FrameCodec<?>[256];
+
+  private FrameCodecRegistry() {}
+
+  public synchronized FrameCodecRegistry register(
+    int type,
+    FrameCodec<?> codec) {
+    checkArgument(type >= 0 && type <= 0xFF);
+    checkNotNull(codec);
+    FrameCodec<?>[] codecs = this.codecs.clone();
+    codecs[type] = codec;
+    this.codecs = codecs;
+    return this;
+  }
+
+  public synchronized FrameCodecRegistry unregister(
+    int type) {
+    checkArgument(type >= 0 && type <= 0xFF);
+    FrameCodec<?>[] codecs = this.codecs.clone();
+    codecs[type] = null;
+    this.codecs = codecs;
+    return this;
+  }
+
+  public FrameCodecRegistry copy() {
+    FrameCodecRegistry copy =
+      new FrameCodecRegistry();
+    copy.codecs = codecs.clone();
+    return copy;
+  }
+
+  public FrameCodec<?> codecFor(byte type) {
+    return codecs[type & 0xFF];
+  }
+
+  public boolean isRegistered(byte type) {
+    return codecFor(type) != null;
+  }
+
+  /**
+   * Returns null if no codec is registered for the type
+   */
+  Frame<?> decode(
+    byte type,
+    byte flags,
+    int stream_id,
+    ByteBuffer payload,
+    HeaderSerializer ser)
+      throws IOException {
+    FrameCodec<?> codec = codecFor(type);
+    return codec != null ?
+      codec.decode(type, flags, stream_id, payload, ser) :
+      null;
+  }
+
+}
@@ -0,0 +1,144 @@
+package snell.http2.frames;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.Math.min;
+import static snell.http2.frames.Frame.HEADER_SIZE;
+import static snell.http2.frames.Frame.lengthOf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import snell.http2.headers.HeaderSerializer;
+
+/**
+ * Resumable frame decoder for non-blocking I/O. Bytes are fed in
+ * whatever chunks arrive off the wire; complete frames are handed
+ * back one at a time as soon as they're available.
+ *
+ * <code><pre>
+ * Frame&lt;?&gt; frame;
+ * while ((frame = decoder.next(buf)) != null)
+ *   dispatch(frame);
+ * buf.compact();
+ * </pre></code>
+ *
+ * When a whole frame is already present in the input buffer it
+ * is parsed in place and its payload is a slice of that buffer,
+ * so frames must be consumed before the buffer is reused. Only
+ * frames that straddle chunk boundaries are accumulated into a
+ * separate buffer. A decoder is bound to a single connection
+ * direction and is not thread-safe.
+ */
+public final class FrameDecoder {
+
+  public static FrameDecoder make(HeaderSerializer ser) {
+    return make(ser, FrameCodecRegistry.defaults());
+  }
+  
+  public static FrameDecoder make(
+    HeaderSerializer ser, 
+    FrameCodecRegistry codecs) {
+    return new FrameDecoder(ser, codecs);
+  }
+
+  private final HeaderSerializer ser;
+  private final FrameCodecRegistry codecs;
+  private final ByteBuffer header =
+    ByteBuffer.allocate(HEADER_SIZE);
+  private ByteBuffer pending;
+  private int skip = 0;
+
+  protected FrameDecoder(
+    HeaderSerializer ser, 
+    FrameCodecRegistry codecs) {
+    this.ser = checkNotNull(ser);
+    this.codecs = checkNotNull(codecs);
+  }
+
+  /**
+   * Consumes as much of the input as needed to complete the next
+   * frame. Returns null, with all of the input consumed, if the
+   * frame is not yet complete. Frames of unregistered types are
+   * discarded as they arrive without being buffered.
+   */
+  public <F extends Frame<F>>F next(
+    ByteBuffer in)
+      throws IOException {
+    checkNotNull(in);
+    while(true) {
+      if (skip > 0) {
+        int c = min(skip, in.remaining());
+        in.position(in.position() + c);
+        skip -= c;
+        if (skip > 0)
+          return null;
+      }
+      if (pending == null) {
+        if (header.position() == 0 &&
+            in.remaining() >= HEADER_SIZE &&
+            in.remaining() >= HEADER_SIZE + lengthOf(in)) {
+          F frame = Frame.<F>parse(in, ser, codecs);
+          if (frame != null)
+            return frame;
+          continue;
+        }
+        fill(header, in);
+        if (header.hasRemaining())
+          return null;
+        header.flip();
+        int length = lengthOf(header);
+        if (!codecs.isRegistered(header.get(2))) {
+          header.clear();
+          skip = length;
+          continue;
+        }
+        pending =
+          ByteBuffer.allocate(
+            HEADER_SIZE + length);
+        pending.put(header);
+        header.clear();
+      }
+      fill(pending, in);
+      if (pending.hasRemaining())
+        return null;
+      ByteBuffer frame = pending;
+      pending = null;
+      frame.flip();
+      F f = Frame.<F>parse(frame, ser, codecs);
+      if (f != null)
+        return f;
+    }
+  }
+
+  /**
+   * True if part of a frame has been consumed but the
+   * frame is not yet complete
+   */
+  public boolean partial() {
+    return pending != null || 
+      header.position() > 0 || 
+      skip > 0;
+  }
+
+  /**
+   * Discards any partially received frame
+   */
+  public void reset() {
+    header.clear();
+    pending = null;
+    skip = 0;
+  }
+
+  private static void fill(
+    ByteBuffer dst,
+    ByteBuffer src) {
+    int c = min(dst.remaining(), src.remaining());
+    if (c == 0)
+      return;
+    ByteBuffer chunk = src.duplicate();
+    chunk.limit(chunk.position() + c);
+    dst.put(chunk);
+    src.position(src.position() + c);
+  }
+
+}
@@ -0,0 +1,367 @@
+package snell.http2.frames;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Ticker;
+
+/**
+ * Queues outgoing frames for a single connection and writes them
+ * out with one gathering write per flush. Frame headers, control
+ * frames and small payloads are encoded into a shared scratch
+ * buffer; larger payloads are referenced rather than copied. File
+ * region DATA frames are sent with FileChannel.transferTo after 
+ * the buffers queued ahead of them, without mapping the file.
+ *
+ * Frames are flushed when the queued bytes reach the configured
+ * threshold, when the oldest queued frame has waited longer than
+ * the configured delay (checked on write() and flushIfDue()), or
+ * on an explicit flush(). On a non-blocking channel a flush may
+ * only partially complete; the remainder stays queued for the
+ * next flush. Not thread-safe.
+ *
+ * The writer takes ownership of each frame passed to write() and
+ * releases it once it has been completely written.
+ */
+public final class FrameWriter {
+
+  public static FrameWriterBuilder make(
+    GatheringByteChannel channel) {
+      return new FrameWriterBuilder(channel);
+  }
+
+  public static final class FrameWriterBuilder
+    implements Supplier<FrameWriter> {
+
+    private final GatheringByteChannel channel;
+    private int scratch = 16 * 1024;
+    private int copy_threshold = 256;
+    private int flush_bytes = -1;
+    private long flush_nanos = -1;
+    private Ticker ticker = Ticker.systemTicker();
+
+    FrameWriterBuilder(GatheringByteChannel channel) {
+      this.channel = checkNotNull(channel);
+    }
+
+    /**
+     * Size of the shared buffer used for headers and small frames
+     */
+    public FrameWriterBuilder scratchSize(int size) {
+      checkArgument(size >= Frame.HEADER_SIZE);
+      this.scratch = size;
+      return this;
+    }
+
+    /**
+     * Payloads at or below this size are copied into the
+     * scratch buffer rather than referenced
+     */
+    public FrameWriterBuilder copyThreshold(int size) {
+      checkArgument(size >= 0);
+      this.copy_threshold = size;
+      return this;
+    }
+
+    /**
+     * Flush once at least this many bytes are queued
+     */
+    public FrameWriterBuilder flushAt(int bytes) {
+      checkArgument(bytes > 0);
+      this.flush_bytes = bytes;
+      return this;
+    }
+
+    /**
+     * Flush once the oldest queued frame has waited this long
+     */
+    public FrameWriterBuilder flushAfter(long delay, TimeUnit unit) {
+      checkArgument(delay >= 0);
+      this.flush_nanos = unit.toNanos(delay);
+      return this;
+    }
+
+    /**
+     * Flush after every frame
+     */
+    public FrameWriterBuilder flushEachFrame() {
+      return flushAt(1);
+    }
+
+    public FrameWriterBuilder ticker(Ticker ticker) {
+      this.ticker = checkNotNull(ticker);
+      return this;
+    }
+
+    public FrameWriter get() {
+      return new FrameWriter(this);
+    }
+  }
+
+  private final GatheringByteChannel channel;
+  private final ByteBuffer scratch;
+  private final int copy_threshold;
+  private final int flush_bytes;
+  private final long flush_nanos;
+  private final Ticker ticker;
+  private final List<ByteBuffer> queue =
+    new ArrayList<ByteBuffer>();
+  private final List<Frame<?>> owned =
+    new ArrayList<Frame<?>>();
+  private final List<Region> regions =
+    new ArrayList<Region>();
+  private ByteBuffer[] pending;
+  private Region[] pending_regions;
+  private int done = 0;
+  private int region = 0;
+  private int mark = 0;
+  private long queued = 0;
+  private long oldest = -1;
+
+  protected FrameWriter(
+    FrameWriterBuilder builder) {
+    this.channel = builder.channel;
+    this.scratch = ByteBuffer.allocateDirect(builder.scratch);
+    this.copy_threshold = builder.copy_threshold;
+    this.flush_bytes = builder.flush_bytes > 0 ?
+      builder.flush_bytes : builder.scratch;
+    this.flush_nanos = builder.flush_nanos;
+    this.ticker = builder.ticker;
+  }
+
+  /**
+   * Queues the frame, flushing if the policy says it's time
+   */
+  public FrameWriter write(
+    Frame<?> frame)
+      throws IOException {
+    checkNotNull(frame);
+    if (frame instanceof DataFrame &&
+        ((DataFrame)frame).isFileRegion()) {
+      writeRegion((DataFrame)frame);
+      return this;
+    }
+    ByteBuffer content = frame.content();
+    int body = content.remaining();
+    boolean copy = body <= copy_threshold;
+    int need =
+      frame.prefixSize() +
+      frame.restSize(content) +
+      (copy ? body : 0);
+    if (need > scratch.remaining())
+      flush();
+    if (need > scratch.remaining()) {
+      // scratch is still in use by an incomplete flush,
+      // or the frame is simply too big to stage
+      close();
+      for (ByteBuffer buf : frame.buffers(content))
+        add(buf);
+    } else {
+      frame.writePrefix(scratch, content);
+      if (copy) {
+        scratch.put(content);
+      } else {
+        close();
+        add(content);
+      }
+      frame.writeRest(scratch);
+    }
+    queued(frame, frame.prefixSize() + frame.restSize(content) + body);
+    return this;
+  }
+  
+  /**
+   * Queues the frame header, then the file region to follow it
+   */
+  private void writeRegion(
+    DataFrame frame)
+      throws IOException {
+    if (frame.prefixSize() > scratch.remaining())
+      flush();
+    if (frame.prefixSize() > scratch.remaining()) {
+      close();
+      ByteBuffer head = 
+        ByteBuffer.allocate(frame.prefixSize());
+      frame.writePrefix(head, Frame.EMPTY);
+      head.flip();
+      add(head);
+    } else {
+      frame.writePrefix(scratch, Frame.EMPTY);
+      close();
+    }
+    regions.add(new Region(frame, queue.size()));
+    queued(frame, frame.prefixSize() + frame.size());
+  }
+  
+  private void queued(
+    Frame<?> frame, 
+    int bytes)
+      throws IOException {
+    owned.add(frame);
+    queued += bytes;
+    if (oldest == -1)
+      oldest = ticker.read();
+    if (due())
+      flush();
+  }
+
+  /**
+   * Writes as much of the queue as the channel will accept.
+   * Returns true if everything queued has been written.
+   */
+  public boolean flush()
+    throws IOException {
+    if (pending == null) {
+      close();
+      if (queue.isEmpty() && regions.isEmpty())
+        return true;
+      pending = queue.toArray(new ByteBuffer[queue.size()]);
+      pending_regions = regions.toArray(new Region[regions.size()]);
+      queue.clear();
+      regions.clear();
+      done = region = 0;
+    }
+    while (true) {
+      boolean last = region == pending_regions.length;
+      if (!gather(last ? pending.length : pending_regions[region].at))
+        return false;
+      if (last)
+        break;
+      if (!pending_regions[region].transfer(channel))
+        return false;
+      region++;
+    }
+    pending = null;
+    pending_regions = null;
+    if (!queue.isEmpty() || !regions.isEmpty())
+      return flush();
+    for (Frame<?> frame : owned)
+      frame.release();
+    owned.clear();
+    scratch.clear();
+    mark = 0;
+    queued = 0;
+    oldest = -1;
+    return true;
+  }
+
+  /**
+   * Flushes only if the size or time threshold has been reached.
+   * Intended to be polled from the connection's event loop.
+   */
+  public boolean flushIfDue()
+    throws IOException {
+    return due() ? flush() : isEmpty();
+  }
+
+  /**
+   * Nanoseconds until the time-based flush is due, or -1 if
+   * nothing is queued or no delay was configured
+   */
+  public long nanosUntilDue() {
+    if (oldest == -1 || flush_nanos < 0)
+      return -1;
+    return Math.max(0, flush_nanos - (ticker.read() - oldest));
+  }
+
+  public long queued() {
+    return queued;
+  }
+
+  public boolean isEmpty() {
+    return queued == 0;
+  }
+
+  private boolean due() {
+    if (queued == 0)
+      return false;
+    if (queued >= flush_bytes)
+      return true;
+    return flush_nanos >= 0 &&
+      ticker.read() - oldest >= flush_nanos;
+  }
+
+  /**
+   * Closes off the region of scratch written since the last
+   * mark as its own buffer in the gather list
+   */
+  private void close() {
+    int pos = scratch.position();
+    if (pos > mark) {
+      ByteBuffer region = scratch.duplicate();
+      region.position(mark);
+      region.limit(pos);
+      add(region.slice());
+      mark = pos;
+    }
+  }
+
+  private void add(ByteBuffer buf) {
+    if (buf.hasRemaining())
+      queue.add(buf);
+  }
+
+  /**
+   * Writes the pending buffers up to end. Returns false if the 
+   * channel stopped taking them.
+   */
+  private boolean gather(int end) 
+    throws IOException {
+    long r = remaining(pending, done, end);
+    while (r > 0) {
+      long n = channel.write(pending, done, end - done);
+      if (n == 0)
+        return false;
+      r -= n;
+    }
+    done = end;
+    return true;
+  }
+
+  private static long remaining(
+    ByteBuffer[] bufs, 
+    int from, 
+    int to) {
+    long n = 0;
+    for (int i = from; i < to; i++)
+      n += bufs[i].remaining();
+    return n;
+  }
+
+  /**
+   * A file region frame's payload, sent once the buffers queued 
+   * ahead of it (up to index at) have been written
+   */
+  private static final class Region {
+    private final DataFrame frame;
+    private final int at;
+    private int sent = 0;
+    Region(DataFrame frame, int at) {
+      this.frame = frame;
+      this.at = at;
+    }
+    /**
+     * Returns false if the channel stopped taking the region
+     */
+    boolean transfer(WritableByteChannel out) 
+      throws IOException {
+      while (sent < frame.size()) {
+        long n = frame.transfer(out, sent);
+        if (n == 0)
+          return false;
+        sent += n;
+      }
+      return true;
+    }
+  }
+
+}
@@ -9,12 +9,32 @@ import static snell.http2.utils.IoUtils.write32;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import snell.http2.headers.HeaderSerializer;
 
 public final class GoAwayFrame 
   extends Frame<GoAwayFrame> {
   
   static final byte TYPE = 0x7;
   
+  static final FrameCodec<GoAwayFrame> CODEC = 
+    new FrameCodec<GoAwayFrame>() {
+      public GoAwayFrame decode(
+        byte type,
+        byte flags,
+        int stream_id,
+        ByteBuffer payload,
+        HeaderSerializer ser)
+          throws IOException {
+        return new GoAwayFrame(
+          flags, 
+          stream_id, 
+          checkPayload(payload,8).getInt(), 
+          payload.getInt());
+      }
+  };
+  
   public static GoAwayFrameBuilder make() {
     return new GoAwayFrameBuilder();
   }
@@ -67,6 +87,16 @@ public final class GoAwayFrame
       this.lastStream = 
         max(0,builder.lastStream);
   }
+  
+  private GoAwayFrame(
+    byte flags,
+    int stream_id,
+    int lastStream,
+    int status) {
+      super(TYPE, flags, stream_id, 8, null);
+      this.status = max(0,status);
+      this.lastStream = max(0,lastStream);
+  }
 
   public Status status() {
     try {
@@ -87,5 +117,13 @@ public final class GoAwayFrame
     write32(out,lastStream);
     write32(out,status);
   }
+  
+  protected void writeRest(
+    ByteBuffer out) 
+      throws IOException {
+    checkNotNull(out);
+    out.putInt(lastStream);
+    out.putInt(status);
+  }
 
 }
@@ -2,23 +2,33 @@ package snell.http2.frames;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.io.ByteStreams.limit;
 import static java.lang.Math.max;
 import static snell.http2.utils.IoUtils.read32;
 import static snell.http2.utils.IoUtils.write32;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 
 import org.joda.time.DateTime;
 
 import snell.http2.headers.HeaderBlock;
 import snell.http2.headers.HeaderBlock.HeaderBlockBuilder;
+import snell.http2.headers.HeaderName;
 import snell.http2.headers.HeaderSerializer;
 import snell.http2.headers.HeaderSet;
 import snell.http2.headers.HeaderSetter;
 import snell.http2.headers.ValueSupplier;
+import snell.http2.headers.dhe.Dhe;
+import snell.http2.utils.ByteBufferInputStream;
+import snell.http2.utils.PooledOutputStream;
+
+import com.google.common.collect.Iterables;
 
 public final class HeadersFrame 
   extends Frame<HeadersFrame>
@@ -32,7 +42,29 @@ public final class HeadersFrame
   static final byte EXPERIMENTAL_FLAG_EPHEMERAL = 0x4;
   static final byte EXPERIMENTAL_FLAG_HTTPONLY  = 0x8;
   static final byte EXPERIMENTAL_FLAG_SECURE    = 0x10;
+  
+  static final byte FLAG_MORE_HEADERS = 0x40;
 
+  static final FrameCodec<HeadersFrame> CODEC = 
+    new FrameCodec<HeadersFrame>() {
+      public HeadersFrame decode(
+        byte type,
+        byte flags,
+        int stream_id,
+        ByteBuffer payload,
+        HeaderSerializer ser)
+          throws IOException {
+        return new HeadersFrame(
+          type, 
+          flags, 
+          stream_id, 
+          type == TYPE1 ? checkPayload(payload,4).getInt() : 0,
+          HeaderBlock.make(ser)
+            .parse(ByteBufferInputStream.of(payload))
+            .get());
+      }
+  };
+  
   public static HeadersFrameBuilder make(
     HeaderSerializer ser) {
       return new HeadersFrameBuilder(TYPE8, ser);
@@ -126,8 +158,10 @@ public final class HeadersFrame
         throws IOException {
       if (type == TYPE1)
         this.priority = read32(in);
-      headers.parse(in);
+      headers.parse(
+        limit(in, length - (type == TYPE1 ? 4 : 0)));
     }
+    
  
     public HeadersFrame get() {
       
@@ -177,6 +211,14 @@ public final class HeadersFrame
       return this;
     }
 
+    @SuppressWarnings("rawtypes")
+    public HeadersFrameBuilder set(
+      HeaderName key, 
+      ValueSupplier... val) {
+      headers.set(key,val);
+      return this;
+    }
+
     @Override
     public HeadersFrameBuilder set(
       String key, 
@@ -201,6 +243,7 @@ public final class HeadersFrame
   private final int priority;
   
   private final boolean experimental_enabled;
+  private final boolean encoded;
   
   protected HeadersFrame(
     HeadersFrameBuilder builder) {
@@ -208,21 +251,146 @@ public final class HeadersFrame
       this.block = builder.headers.get();
       this.priority = max(0,builder.priority);
       this.experimental_enabled = builder.experimental_enabled;
+      this.encoded = false;
+  }
+  
+  private HeadersFrame(
+    byte type,
+    byte flags,
+    int stream_id,
+    int priority,
+    HeaderBlock block) {
+      super(type, flags, stream_id, 0, null);
+      this.block = block;
+      this.priority = max(0,priority);
+      this.experimental_enabled = false;
+      this.encoded = false;
+  }
+  
+  /**
+   * One of the frames split() makes, carrying its share of the 
+   * already encoded block
+   */
+  private HeadersFrame(
+    HeadersFrame source,
+    byte flags,
+    ByteBuffer payload) {
+      super(source.type, flags, source.opaque_id, 0, payload);
+      this.block = source.block;
+      this.priority = source.priority;
+      this.experimental_enabled = source.experimental_enabled;
+      this.encoded = true;
   }
   
   public int size() {
     return block.size();
   }
+  
+  /**
+   * True if this is a TYPE1 frame carrying a stream priority
+   */
+  public boolean hasPriority() {
+    return type == TYPE1;
+  }
+  
+  /**
+   * 31-bit stream priority, 0 being the highest
+   */
+  public int priority() {
+    return priority;
+  }
+
+  /**
+   * Encodes the headers as the frames to write in place of this 
+   * one: one per DHE block, so a set too big for one frame goes 
+   * out over several. All but the last are flagged as having more
+   * headers to follow, and only the last keeps FIN; join() puts 
+   * them back together on the other side. Must be called in
+   * the order the frames are written, as it updates the encoder. 
+   * Throws IllegalArgumentException, with the encoder untouched, 
+   * when a single header can't fit in a frame.
+   */
+  public List<HeadersFrame> split() 
+      throws IOException {
+    if (encoded || !(block.serializer() instanceof Dhe))
+      return Collections.singletonList(this);
+    int prefix = type == TYPE1 ? 4 : 0;
+    PooledOutputStream out = 
+      new PooledOutputStream();
+    try {
+      int[] ends = 
+        ((Dhe)block.serializer()).serialize(
+          out, block, DEFAULT_MAX_SIZE - prefix);
+      byte[] bytes = out.toByteArray();
+      List<HeadersFrame> frames = 
+        new ArrayList<HeadersFrame>(ends.length);
+      int start = 0;
+      for (int n = 0; n < ends.length; n++) {
+        ByteBuffer payload = 
+          ByteBuffer.allocate(prefix + ends[n] - start);
+        if (type == TYPE1)
+          payload.putInt(priority);
+        payload.put(bytes, start, ends[n] - start);
+        payload.flip();
+        byte f = n == ends.length - 1 ? 
+          flags : (byte)(flags & ~FIN_FLAG | FLAG_MORE_HEADERS);
+        frames.add(new HeadersFrame(this, f, payload));
+        start = ends[n];
+      }
+      return frames;
+    } finally {
+      out.release();
+    }
+  }
+
+  /**
+   * True if this frame is one of several carrying a header set, 
+   * and isn't the last
+   */
+  public boolean moreHeaders() {
+    return flag(FLAG_MORE_HEADERS);
+  }
+  
+  /**
+   * The header set split() spread over the given frames, received
+   * in order, as one frame. Takes its priority from the first 
+   * frame and its FIN from the last.
+   */
+  public static HeadersFrame join(
+    List<HeadersFrame> parts) {
+    checkArgument(!parts.isEmpty());
+    HeadersFrame first = parts.get(0);
+    HeadersFrame last = parts.get(parts.size() - 1);
+    HeaderBlockBuilder headers = 
+      HeaderBlock.make(first.block.serializer());
+    for (HeadersFrame part : parts)
+      for (HeaderName name : part)
+        headers.set(
+          name, 
+          Iterables.toArray(part.get(name), ValueSupplier.class));
+    return new HeadersFrame(
+      first.type, 
+      (byte)(last.flags & ~FLAG_MORE_HEADERS), 
+      first.opaque_id, 
+      first.priority, 
+      headers.get());
+  }
 
   @Override
   protected byte[] preWrite() 
       throws IOException {
-    ByteArrayOutputStream out = 
-      new ByteArrayOutputStream();
-    if (type == TYPE1)
-      write32(out,priority);
-    block.writeTo(out);
-    return out.toByteArray();
+    if (encoded)
+      return null;
+    PooledOutputStream out = 
+      new PooledOutputStream();
+    try {
+      if (type == TYPE1)
+        write32(out,priority);
+      block.writeTo(out);
+      return out.toByteArray();
+    } finally {
+      out.release();
+    }
   }
 
   @SuppressWarnings("rawtypes")
@@ -231,8 +399,14 @@ public final class HeadersFrame
     return block.get(key);
   }
 
+  @SuppressWarnings("rawtypes")
+  @Override
+  public Iterable<ValueSupplier> get(HeaderName key) {
+    return block.get(key);
+  }
+
   @Override
-  public Iterator<String> iterator() {
+  public Iterator<HeaderName> iterator() {
     return block.iterator();
   }
 
@@ -241,6 +415,12 @@ public final class HeadersFrame
   public boolean contains(String key, ValueSupplier val) {
     return block.contains(key,val);
   }
+
+  @SuppressWarnings("rawtypes")
+  @Override
+  public boolean contains(HeaderName key, ValueSupplier val) {
+    return block.contains(key,val);
+  }
   
   public boolean experimentalPersist() {
     checkState(experimental_enabled);
@@ -1,5 +1,10 @@
 package snell.http2.frames;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import snell.http2.headers.HeaderSerializer;
+
 public final class PingFrame 
   extends Frame<PingFrame> {
   
@@ -7,6 +12,19 @@ public final class PingFrame
   
   private static final byte FLAG_PONG = 0x2;
   
+  static final FrameCodec<PingFrame> CODEC = 
+    new FrameCodec<PingFrame>() {
+      public PingFrame decode(
+        byte type,
+        byte flags,
+        int stream_id,
+        ByteBuffer payload,
+        HeaderSerializer ser)
+          throws IOException {
+        return new PingFrame(flags, stream_id, payload);
+      }
+  };
+  
   public static PingFrameBuilder make() {
     return new PingFrameBuilder();
   }
@@ -24,6 +42,14 @@ public final class PingFrame
       this.flag(FLAG_PONG, on);
       return this;
     }
+    /**
+     * Copies the opaque ping data, e.g. from the ping 
+     * being answered
+     */
+    public PingFrameBuilder data(ByteBuffer data) {
+      buffer.write(data.duplicate());
+      return this;
+    }
     @Override
     public PingFrame get() {
       return new PingFrame(this);
@@ -35,8 +61,20 @@ public final class PingFrame
       super(builder);
   }
   
+  private PingFrame(
+    byte flags,
+    int stream_id,
+    ByteBuffer payload) {
+      super(TYPE, flags, stream_id, 0, payload);
+  }
+  
   public boolean pong() {
     return this.flag(FLAG_PONG);
   }
+  
+  @Override
+  public ByteBuffer payload() {
+    return super.payload();
+  }
 
 }
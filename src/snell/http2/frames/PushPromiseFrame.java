@@ -1,23 +1,27 @@
 package snell.http2.frames;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.io.ByteStreams.limit;
 import static java.lang.Math.max;
 import static snell.http2.utils.IoUtils.read32;
 import static snell.http2.utils.IoUtils.write32;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 
 import org.joda.time.DateTime;
 
 import snell.http2.headers.HeaderBlock;
 import snell.http2.headers.HeaderBlock.HeaderBlockBuilder;
+import snell.http2.headers.HeaderName;
 import snell.http2.headers.HeaderSerializer;
 import snell.http2.headers.HeaderSet;
 import snell.http2.headers.HeaderSetter;
 import snell.http2.headers.ValueSupplier;
+import snell.http2.utils.ByteBufferInputStream;
+import snell.http2.utils.PooledOutputStream;
 
 public final class PushPromiseFrame 
   extends Frame<PushPromiseFrame>
@@ -25,6 +29,25 @@ public final class PushPromiseFrame
   
   static final byte TYPE = 0x5;
 
+  static final FrameCodec<PushPromiseFrame> CODEC = 
+    new FrameCodec<PushPromiseFrame>() {
+      public PushPromiseFrame decode(
+        byte type,
+        byte flags,
+        int stream_id,
+        ByteBuffer payload,
+        HeaderSerializer ser)
+          throws IOException {
+        return new PushPromiseFrame(
+          flags, 
+          stream_id, 
+          checkPayload(payload,4).getInt(),
+          HeaderBlock.make(ser)
+            .parse(ByteBufferInputStream.of(payload))
+            .get());
+      }
+  };
+  
   public static PushPromiseFrameBuilder make(HeaderSerializer ser) {
     return new PushPromiseFrameBuilder(ser);
   }
@@ -47,8 +70,9 @@ public final class PushPromiseFrame
       InputStream in) 
         throws IOException {
       this.id = read32(in);
-      headers.parse(in);
+      headers.parse(limit(in, length - 4));
     }
+    
  
     public PushPromiseFrame get() {
       return new PushPromiseFrame(this);
@@ -96,6 +120,14 @@ public final class PushPromiseFrame
       return this;
     }
 
+    @SuppressWarnings("rawtypes")
+    public PushPromiseFrameBuilder set(
+      HeaderName key, 
+      ValueSupplier... val) {
+      headers.set(key,val);
+      return this;
+    }
+
     @Override
     public PushPromiseFrameBuilder set(
       String key, 
@@ -126,18 +158,39 @@ public final class PushPromiseFrame
       this.id = max(0,builder.id);
   }
   
+  private PushPromiseFrame(
+    byte flags,
+    int stream_id,
+    int id,
+    HeaderBlock block) {
+      super(TYPE, flags, stream_id, 0, null);
+      this.block = block;
+      this.id = max(0,id);
+  }
+  
   public int size() {
     return block.size();
   }
+  
+  /**
+   * Id of the stream being promised
+   */
+  public int promisedId() {
+    return id;
+  }
 
   @Override
   protected byte[] preWrite() 
       throws IOException {
-    ByteArrayOutputStream out = 
-      new ByteArrayOutputStream();
-    write32(out,id);
-    block.writeTo(out);
-    return out.toByteArray();
+    PooledOutputStream out = 
+      new PooledOutputStream();
+    try {
+      write32(out,id);
+      block.writeTo(out);
+      return out.toByteArray();
+    } finally {
+      out.release();
+    }
   }
 
   @SuppressWarnings("rawtypes")
@@ -146,8 +199,14 @@ public final class PushPromiseFrame
     return block.get(key);
   }
 
+  @SuppressWarnings("rawtypes")
+  @Override
+  public Iterable<ValueSupplier> get(HeaderName key) {
+    return block.get(key);
+  }
+
   @Override
-  public Iterator<String> iterator() {
+  public Iterator<HeaderName> iterator() {
     return block.iterator();
   }
 
@@ -156,4 +215,10 @@ public final class PushPromiseFrame
   public boolean contains(String key, ValueSupplier val) {
     return block.contains(key,val);
   }
+
+  @SuppressWarnings("rawtypes")
+  @Override
+  public boolean contains(HeaderName key, ValueSupplier val) {
+    return block.contains(key,val);
+  }
 }
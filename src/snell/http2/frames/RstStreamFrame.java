@@ -8,12 +8,31 @@ import static snell.http2.utils.IoUtils.write32;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import snell.http2.headers.HeaderSerializer;
 
 public final class RstStreamFrame 
   extends Frame<RstStreamFrame> {
   
   static final byte TYPE = 0x3;
   
+  static final FrameCodec<RstStreamFrame> CODEC = 
+    new FrameCodec<RstStreamFrame>() {
+      public RstStreamFrame decode(
+        byte type,
+        byte flags,
+        int stream_id,
+        ByteBuffer payload,
+        HeaderSerializer ser)
+          throws IOException {
+        return new RstStreamFrame(
+          flags, 
+          stream_id, 
+          checkPayload(payload,4).getInt());
+      }
+  };
+  
   public static RstStreamFrameBuilder make() {
     return new RstStreamFrameBuilder();
   }
@@ -55,6 +74,14 @@ public final class RstStreamFrame
       this.status = 
         max(0,builder.status);
   }
+  
+  private RstStreamFrame(
+    byte flags,
+    int stream_id,
+    int status) {
+      super(TYPE, flags, stream_id, 4, null);
+      this.status = max(0,status);
+  }
 
   public Status status() {
     try {
@@ -70,5 +97,12 @@ public final class RstStreamFrame
     checkNotNull(out);
     write32(out,status);
   }
+  
+  protected void writeRest(
+    ByteBuffer out) 
+      throws IOException {
+    checkNotNull(out);
+    out.putInt(status);
+  }
 
 }
@@ -8,8 +8,11 @@ import static snell.http2.utils.IoUtils.write32;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import snell.http2.headers.HeaderSerializer;
+
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.primitives.Ints;
@@ -54,6 +57,8 @@ public final class SettingsFrame
     CURRENT_CWND(5),
     DOWNLOAD_RETRANS_RATE(6),
     INITIAL_WINDOW_SIZE(7),
+    HEADER_TABLE_SIZE(8),
+    HEADER_TABLE_ENTRIES(9),
     FLOW_CONTROL_OPTIONS(10)
     ;
     private final int v;
@@ -72,6 +77,37 @@ public final class SettingsFrame
     }
   }
   
+  static final FrameCodec<SettingsFrame> CODEC = 
+    new FrameCodec<SettingsFrame>() {
+      public SettingsFrame decode(
+        byte type,
+        byte flags,
+        int stream_id,
+        ByteBuffer payload,
+        HeaderSerializer ser)
+          throws IOException {
+        return new SettingsFrame(
+          flags, 
+          stream_id, 
+          entries(payload));
+      }
+  };
+  
+  /**
+   * Settings with identifiers we don't know are ignored
+   */
+  private static ImmutableSet<Entry> entries(
+    ByteBuffer payload) {
+    ImmutableSortedSet.Builder<Entry> entries = 
+      ImmutableSortedSet.naturalOrder();
+    while(payload.remaining() >= 8) {
+      Entry entry = Entry.parse(payload);
+      if (entry.setting() != null)
+        entries.add(entry);
+    }
+    return entries.build();
+  }
+  
   public static SettingsFrameBuilder make() {
     return new SettingsFrameBuilder();
   }
@@ -102,6 +138,7 @@ public final class SettingsFrame
         l -= 8;
       }
     }
+    
 
     @Override
     public SettingsFrameBuilder streamId(int id) {
@@ -133,6 +170,18 @@ public final class SettingsFrame
       return set(key,val,SettingFlags.PERSISTED);
     }
     
+    public SettingsFrameBuilder set(
+      Settings key, 
+      int val) {
+      checkNotNull(key);
+      settings.add(
+        new Entry(
+          key,
+          val,
+          ImmutableSet.<SettingFlags>of()));
+      return this;
+    }
+    
     public SettingsFrameBuilder set(
       Settings key, 
       int val, 
@@ -166,6 +215,15 @@ public final class SettingsFrame
       this.set = entries;
   }
   
+  private SettingsFrame(
+    byte flags,
+    int stream_id,
+    ImmutableSet<Entry> entries) {
+      super(TYPE, flags, stream_id, entries.size() * 8, null);
+      this.includeCsh = false;
+      this.set = entries;
+  }
+  
   public boolean clearPersisted() {
     return this.flag(FLAG_CLEAR_PERSISTED);
   }
@@ -189,11 +247,28 @@ public final class SettingsFrame
     super.writeTo(out);
   }
   
+  @Override
+  int prefixSize() {
+    return super.prefixSize() + (includeCsh ? CSH.length : 0);
+  }
+  
+  @Override
+  void writePrefix(ByteBuffer out, ByteBuffer content) {
+    if (includeCsh)
+      out.put(CSH);
+    super.writePrefix(out, content);
+  }
+  
   protected void writeRest(OutputStream out) throws IOException {
     for (Entry l : set)
       l.writeTo(out);
   }
   
+  protected void writeRest(ByteBuffer out) throws IOException {
+    for (Entry l : set)
+      l.writeTo(out);
+  }
+  
   private static final byte[] CSH = 
     {0x46,0x4f,0x4f,0x20,
      0x2a,0x20,0x48,0x54,
@@ -203,6 +278,10 @@ public final class SettingsFrame
      0x52,0x0d,0x0a,0x0d,
      0x0a};
   
+  public static int clientSessionHeaderLength() {
+    return CSH.length;
+  }
+  
   public static boolean consumeCsh(
     InputStream in) 
       throws IOException {
@@ -224,7 +303,15 @@ public final class SettingsFrame
     public static Entry parse(
       InputStream in) 
         throws IOException {
-      long entry = read64(in);
+      return parse(read64(in));
+    }
+    
+    public static Entry parse(
+      ByteBuffer in) {
+      return parse(in.getLong());
+    }
+    
+    private static Entry parse(long entry) {
       int key = (int)(entry >>> 32);
       int val = (int)entry;
       byte flag = (byte)(entry >>> 24);
@@ -265,6 +352,14 @@ public final class SettingsFrame
       write32(out,(flag << 24)|setting.id());
       write32(out,value);
     }
+    protected void writeTo(
+      ByteBuffer out) {
+      byte flag = 0;
+      for (SettingFlags f : flags)
+        flag |= f.val();
+      out.putInt((flag << 24)|setting.id());
+      out.putInt(value);
+    }
     @Override
     public int hashCode() {
       if (hash == 1) {
@@ -8,6 +8,9 @@ import static snell.http2.utils.IoUtils.write32;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import snell.http2.headers.HeaderSerializer;
 
 public final class WindowUpdateFrame
   extends Frame<WindowUpdateFrame> {
@@ -15,6 +18,22 @@ public final class WindowUpdateFrame
   private static final byte FLAG_END_FLOW_CONTROL = 0x2;
   static final byte TYPE = 0x9;
   
+  static final FrameCodec<WindowUpdateFrame> CODEC = 
+    new FrameCodec<WindowUpdateFrame>() {
+      public WindowUpdateFrame decode(
+        byte type,
+        byte flags,
+        int stream_id,
+        ByteBuffer payload,
+        HeaderSerializer ser)
+          throws IOException {
+        return new WindowUpdateFrame(
+          flags, 
+          stream_id, 
+          checkPayload(payload,4).getInt());
+      }
+  };
+  
   public static WindowUpdateFrameBuilder make() {
     return new WindowUpdateFrameBuilder();
   }
@@ -35,7 +54,7 @@ public final class WindowUpdateFrame
       checkNotNull(in);
       this.val = read32(in);
     }
-
+    
     public WindowUpdateFrameBuilder endFlowControl() {
       return this.flag(FLAG_END_FLOW_CONTROL, true);
     }
@@ -66,14 +85,33 @@ public final class WindowUpdateFrame
       this.val = builder.val;
   }
   
+  private WindowUpdateFrame(
+    byte flags,
+    int stream_id,
+    int val) {
+      super(TYPE, flags, stream_id, 4, null);
+      this.val = val;
+  }
+  
   public boolean endFlowControl() {
     return flag(FLAG_END_FLOW_CONTROL);
   }
   
+  public int value() {
+    return val;
+  }
+  
   @Override
   protected void writeRest(
     OutputStream out) 
       throws IOException {
     write32(out,val);
   }    
+  
+  @Override
+  protected void writeRest(
+    ByteBuffer out) 
+      throws IOException {
+    out.putInt(val);
+  }
 }
@@ -1,7 +1,7 @@
 package snell.http2.headers;
 
-import static snell.http2.utils.IoUtils.int2uvarint;
 import static snell.http2.utils.IoUtils.uvarint2int;
+import static snell.http2.utils.IoUtils.writeUvarint;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -33,9 +33,7 @@ public class BinaryValueSupplier
   public void writeTo(
     OutputStream buffer) 
       throws IOException {
-    buffer.write(
-      int2uvarint(
-        data.length));
+    writeUvarint(buffer, data.length);
     buffer.write(data);
   }
 
@@ -31,7 +31,7 @@ public final class HeaderBlock
   }
   
   private final HeaderSerializer ser;  
-  private final ImmutableMultimap<String,ValueSupplier> map;
+  private final ImmutableMultimap<HeaderName,ValueSupplier> map;
   
   protected HeaderBlock(
     HeaderBlockBuilder builder) {
@@ -45,28 +45,42 @@ public final class HeaderBlock
     ser.serialize(buf, this);
   }
  
+  public HeaderSerializer serializer() {
+    return ser;
+  }
+ 
   public int size() {
     return map.size();
   }
     
-  protected static String tlc(String key) {
-    checkNotNull(key);
-    return key.toLowerCase();
+  protected static HeaderName tlc(String key) {
+    return HeaderName.of(key);
   }
   
   @Override
   public Iterable<ValueSupplier> get(String key) {
-    return map.get(tlc(key));
+    return get(tlc(key));
   }
 
   @Override
-  public Iterator<String> iterator() {
+  public Iterable<ValueSupplier> get(HeaderName key) {
+    checkNotNull(key);
+    return map.get(key);
+  }
+
+  @Override
+  public Iterator<HeaderName> iterator() {
     return map.keySet().iterator();
   }
 
   @Override
   public boolean contains(String key, ValueSupplier val) {
-    key = tlc(key);
+    return contains(tlc(key), val);
+  }
+
+  @Override
+  public boolean contains(HeaderName key, ValueSupplier val) {
+    checkNotNull(key);
     if (!map.containsKey(key)) return false;
     return map.get(key).contains(val);
   }
@@ -0,0 +1,105 @@
+package snell.http2.headers;
+
+/**
+ * Character checks for header names and values, done in one pass
+ * with a single range compare per printable ASCII char; everything
+ * else takes the slow path.
+ */
+final class HeaderChars {
+
+  private HeaderChars() {}
+
+  /**
+   * RFC 7230 tchar, as a 128 bit set: ALPHA, DIGIT and
+   * !#$%&'*+-.^_`|~
+   */
+  private static final long TOKEN_LO = 0x03FF6CFA00000000L;
+  private static final long TOKEN_HI = 0x57FFFFFFC7FFFFFEL;
+
+  static boolean isToken(char c) {
+    return c < 0x80 &&
+      ((c < 0x40 ? TOKEN_LO : TOKEN_HI) >>> c & 1) != 0;
+  }
+
+  /**
+   * True if the lowercased name is a token, or a token with a
+   * leading ':' for the pseudo headers
+   */
+  static boolean isName(CharSequence name) {
+    int n = name.length();
+    int i = n > 1 && name.charAt(0) == ':' ? 1 : 0;
+    if (i == n)
+      return false;
+    for (; i < n; i++)
+      if (!isToken(name.charAt(i)))
+        return false;
+    return true;
+  }
+
+  /**
+   * The UTF-8 length of a value as writeValue() writes it, counting
+   * unpaired surrogates as a single '?'. Throws 
+   * IllegalArgumentException on NUL, CR, LF and DEL, which can't
+   * appear in a value.
+   */
+  static int valueLength(CharSequence s) {
+    int n = s.length();
+    int len = n;
+    for (int i = 0; i < n; i++) {
+      char c = s.charAt(i);
+      if ((char)(c - 0x20) < 0x5F) // ' ' to '~'
+        continue;
+      if (c < 0x80) {
+        if (c == 0 || c == '\r' || c == '\n' || c == 0x7F)
+          throw new IllegalArgumentException(
+            "Illegal character in header value: " + (int)c);
+      } else if (c < 0x800)
+        len += 1;
+      else if (c < Character.MIN_SURROGATE ||
+               c > Character.MAX_SURROGATE)
+        len += 2;
+      else if (Character.isHighSurrogate(c) &&
+               i + 1 < n &&
+               Character.isLowSurrogate(s.charAt(i + 1))) {
+        len += 2; // four bytes for the pair
+        i++;
+      }
+    }
+    return len;
+  }
+
+  /**
+   * Writes the value into dst as UTF-8, replacing unpaired 
+   * surrogates with '?'. dst must hold valueLength(s) bytes. 
+   * Returns the number of bytes written.
+   */
+  static int writeValue(CharSequence s, byte[] dst) {
+    int n = s.length();
+    int j = 0;
+    for (int i = 0; i < n; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80)
+        dst[j++] = (byte)c;
+      else if (c < 0x800) {
+        dst[j++] = (byte)(0xC0 | c >> 6);
+        dst[j++] = (byte)(0x80 | c & 0x3F);
+      } else if (c < Character.MIN_SURROGATE ||
+                 c > Character.MAX_SURROGATE) {
+        dst[j++] = (byte)(0xE0 | c >> 12);
+        dst[j++] = (byte)(0x80 | c >> 6 & 0x3F);
+        dst[j++] = (byte)(0x80 | c & 0x3F);
+      } else if (Character.isHighSurrogate(c) &&
+                 i + 1 < n &&
+                 Character.isLowSurrogate(s.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, s.charAt(++i));
+        dst[j++] = (byte)(0xF0 | cp >> 18);
+        dst[j++] = (byte)(0x80 | cp >> 12 & 0x3F);
+        dst[j++] = (byte)(0x80 | cp >> 6 & 0x3F);
+        dst[j++] = (byte)(0x80 | cp & 0x3F);
+      } else
+        dst[j++] = '?';
+    }
+    return j;
+  }
+
+}
@@ -0,0 +1,272 @@
+package snell.http2.headers;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import snell.http2.utils.IoUtils;
+
+/**
+ * A lowercased header name. Well known names are interned: looking
+ * one up, in any case, from a String or from raw bytes, returns the
+ * same instance without allocating, so they compare by reference
+ * and carry a small dense id() that tables can index by. Any other
+ * name gets a new instance that compares by content, and has to
+ * be a token (or a ':' pseudo header).
+ */
+public final class HeaderName {
+
+  private static final String[] KNOWN = {
+    ":method",
+    ":scheme",
+    ":path",
+    ":host",
+    ":authority",
+    ":status",
+    ":status-text",
+    ":version",
+    "accept",
+    "accept-charset",
+    "accept-encoding",
+    "accept-language",
+    "accept-patch",
+    "accept-ranges",
+    "access-control-allow-credentials",
+    "access-control-allow-headers",
+    "access-control-allow-methods",
+    "access-control-allow-origin",
+    "access-control-expose-headers",
+    "access-control-max-age",
+    "access-control-request-headers",
+    "access-control-request-method",
+    "age",
+    "allow",
+    "alt-svc",
+    "authorization",
+    "cache-control",
+    "connection",
+    "content-base",
+    "content-disposition",
+    "content-encoding",
+    "content-language",
+    "content-length",
+    "content-location",
+    "content-md5",
+    "content-range",
+    "content-security-policy",
+    "content-type",
+    "cookie",
+    "date",
+    "dnt",
+    "etag",
+    "expect",
+    "expires",
+    "forwarded",
+    "from",
+    "get-dictionary",
+    "host",
+    "if-match",
+    "if-modified-since",
+    "if-none-match",
+    "if-range",
+    "if-unmodified-since",
+    "keep-alive",
+    "last-modified",
+    "link",
+    "location",
+    "max-forwards",
+    "origin",
+    "p3p",
+    "pragma",
+    "prefer",
+    "preference-applied",
+    "proxy-authenticate",
+    "proxy-authorization",
+    "range",
+    "referer",
+    "refresh",
+    "retry-after",
+    "server",
+    "set-cookie",
+    "status",
+    "strict-transport-security",
+    "te",
+    "trailer",
+    "transfer-encoding",
+    "upgrade",
+    "upgrade-insecure-requests",
+    "user-agent",
+    "vary",
+    "via",
+    "warning",
+    "www-authenticate",
+    "x-content-type-options",
+    "x-forwarded-for",
+    "x-forwarded-proto",
+    "x-frame-options",
+    "x-requested-with",
+    "x-xss-protection"
+  };
+
+  /**
+   * Open addressed by hash, at most half full
+   */
+  private static final HeaderName[] table;
+  private static final int mask;
+
+  static {
+    int size = Integer.highestOneBit(KNOWN.length) << 2;
+    table = new HeaderName[size];
+    mask = size - 1;
+    for (int n = 0; n < KNOWN.length; n++) {
+      HeaderName name = new HeaderName(KNOWN[n], n);
+      int i = name.hash & mask;
+      while (table[i] != null)
+        i = (i + 1) & mask;
+      table[i] = name;
+    }
+  }
+
+  public static final HeaderName COOKIE =
+    of("cookie");
+  public static final HeaderName AUTHORIZATION =
+    of("authorization");
+  public static final HeaderName PROXY_AUTHORIZATION =
+    of("proxy-authorization");
+
+  /**
+   * The number of well known names; their ids run from 0 to
+   * known() - 1
+   */
+  public static int known() {
+    return KNOWN.length;
+  }
+
+  public static HeaderName of(String name) {
+    checkNotNull(name);
+    int h = 0;
+    boolean lower = true;
+    for (int n = 0; n < name.length(); n++) {
+      char c = name.charAt(n);
+      lower &= c < 'A' || c > 'Z';
+      h = 31 * h + lower(c);
+    }
+    for (int i = h & mask; table[i] != null; i = (i + 1) & mask) {
+      HeaderName known = table[i];
+      if (known.hash == h && known.matches(name))
+        return known;
+    }
+    return unknown(lower ? name : lowercase(name));
+  }
+
+  /**
+   * Reads an ISO-8859-1 encoded name
+   */
+  public static HeaderName of(byte[] data, int off, int len) {
+    checkNotNull(data);
+    checkPositionIndexes(off, off + len, data.length);
+    int h = 0;
+    for (int n = off; n < off + len; n++)
+      h = 31 * h + lower((char)(data[n] & 0xFF));
+    for (int i = h & mask; table[i] != null; i = (i + 1) & mask) {
+      HeaderName known = table[i];
+      if (known.hash == h && known.matches(data, off, len))
+        return known;
+    }
+    char[] chars = new char[len];
+    for (int n = 0; n < len; n++)
+      chars[n] = lower((char)(data[off + n] & 0xFF));
+    return unknown(new String(chars));
+  }
+
+  private static HeaderName unknown(String name) {
+    if (!HeaderChars.isName(name))
+      throw new IllegalArgumentException(
+        "Invalid header name: " + name);
+    return new HeaderName(name, -1);
+  }
+
+  private static char lower(char c) {
+    return c >= 'A' && c <= 'Z' ? (char)(c + 32) : c;
+  }
+
+  private static String lowercase(String name) {
+    char[] chars = name.toCharArray();
+    for (int n = 0; n < chars.length; n++)
+      chars[n] = lower(chars[n]);
+    return new String(chars);
+  }
+
+  private final String name;
+  private final byte[] data;
+  private final int hash;
+  private final int id;
+
+  private HeaderName(String name, int id) {
+    this.name = name;
+    this.data = IoUtils.ascii(name);
+    this.hash = name.hashCode();
+    this.id = id;
+  }
+
+  private boolean matches(String other) {
+    if (other.length() != name.length())
+      return false;
+    for (int n = 0; n < name.length(); n++)
+      if (lower(other.charAt(n)) != name.charAt(n))
+        return false;
+    return true;
+  }
+
+  private boolean matches(byte[] other, int off, int len) {
+    if (len != data.length)
+      return false;
+    for (int n = 0; n < len; n++)
+      if (lower((char)(other[off + n] & 0xFF)) != name.charAt(n))
+        return false;
+    return true;
+  }
+
+  /**
+   * The index of a well known name, or -1
+   */
+  public int id() {
+    return id;
+  }
+
+  /**
+   * The length of the encoded name in bytes
+   */
+  public int length() {
+    return data.length;
+  }
+
+  /**
+   * Writes the ISO-8859-1 encoded name, without a length prefix
+   */
+  public void writeTo(OutputStream out)
+    throws IOException {
+    out.write(data);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) return true;
+    if (id >= 0 || !(obj instanceof HeaderName))
+      return false;
+    HeaderName other = (HeaderName) obj;
+    return hash == other.hash && name.equals(other.name);
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -14,7 +14,7 @@ import com.google.common.collect.ImmutableMultimap;
 
 @SuppressWarnings("rawtypes")
 public interface HeaderSet<X extends HeaderSet<X>> 
-  extends Iterable<String> {
+  extends Iterable<HeaderName> {
 
   @SuppressWarnings("unchecked")
   public static abstract class HeaderSetBuilder
@@ -22,7 +22,7 @@ public interface HeaderSet<X extends HeaderSet<X>>
     implements Supplier<H>, 
                HeaderSetter<B> {
 
-    protected ImmutableMultimap.Builder<String,ValueSupplier> map = 
+    protected ImmutableMultimap.Builder<HeaderName,ValueSupplier> map = 
       ImmutableMultimap.builder();
     protected final HeaderSerializer ser;
     protected Huffman huffman;
@@ -46,9 +46,8 @@ public interface HeaderSet<X extends HeaderSet<X>>
         .omitEmptyStrings()
         .trimResults();
     
-    protected static String tlc(String key) {
-      checkNotNull(key);
-      return key.toLowerCase();
+    protected static HeaderName tlc(String key) {
+      return HeaderName.of(key);
     }
         
     private StringValueSupplier c(String v) {
@@ -61,14 +60,14 @@ public interface HeaderSet<X extends HeaderSet<X>>
     
     @Override
     public B set(String key, String... val) {
-      key = tlc(key);
+      HeaderName name = tlc(key);
       if (val != null) {
-        if (key.equalsIgnoreCase("cookie")) {
+        if (name == HeaderName.COOKIE) {
           for (String v : val)
             for (String crumb : splitter.split(v))
-              map.put(key, c(crumb));
+              map.put(name, c(crumb));
         } else
-          map.put(key, c(val));
+          map.put(name, c(val));
       }
       return (B)this;
     }
@@ -93,7 +92,12 @@ public interface HeaderSet<X extends HeaderSet<X>>
 
     @Override
     public B set(String key, ValueSupplier... val) {
-      key = tlc(key);
+      return set(tlc(key), val);
+    }
+
+    @Override
+    public B set(HeaderName key, ValueSupplier... val) {
+      checkNotNull(key);
       if (val != null) {
         for (ValueSupplier v : val)
           map.put(key,v);
@@ -114,8 +118,12 @@ public interface HeaderSet<X extends HeaderSet<X>>
   
   boolean contains(String key, ValueSupplier val);
   
+  boolean contains(HeaderName key, ValueSupplier val);
+  
   Iterable<ValueSupplier> get(String key);
   
+  Iterable<ValueSupplier> get(HeaderName key);
+  
   int size();
   
 }
\ No newline at end of file
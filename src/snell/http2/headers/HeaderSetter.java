@@ -27,6 +27,10 @@ public interface HeaderSetter<B extends HeaderSetter<B>> {
   public abstract B set(
     String key, 
     ValueSupplier... val);
+
+  public abstract B set(
+    HeaderName key, 
+    ValueSupplier... val);
   
   public abstract B set(
     String key, 
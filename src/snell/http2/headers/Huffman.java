@@ -1,16 +1,30 @@
 package snell.http2.headers;
 
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static snell.http2.utils.IntPair.of;
 
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Map;
 
-import snell.http2.utils.BitBucket;
+import snell.http2.utils.BitReader;
+import snell.http2.utils.BitWriter;
+import snell.http2.utils.BufferPool;
 import snell.http2.utils.IntPair;
+import snell.http2.utils.PooledBuffer;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedMap;
@@ -19,13 +33,18 @@ import com.google.common.primitives.Ints;
 
 public final class Huffman {
 
-  private static boolean within(byte c, int l, int h) {
-    return c >= (byte)l && c <= (byte)h;
-  }
+  /**
+   * The number of continuation bytes after each UTF-8 lead byte,
+   * by unsigned value; -1 for bytes that can't lead
+   */
+  private static final byte[] FOLLOWING = new byte[256];
   
-  private static void storeContinuation(byte c, BitBucket bucket) {
-    c = (byte)(c << 2); // shift the bit over two
-    bucket.storeBits(c, 6); // and write out six bits...
+  static {
+    Arrays.fill(FOLLOWING, (byte)-1);
+    Arrays.fill(FOLLOWING, 0x00, 0x80, (byte)0);
+    Arrays.fill(FOLLOWING, 0xC2, 0xE0, (byte)1);
+    Arrays.fill(FOLLOWING, 0xE0, 0xF0, (byte)2);
+    Arrays.fill(FOLLOWING, 0xF0, 0xF5, (byte)3);
   }
   
   public static void encode(
@@ -35,39 +54,10 @@ public final class Huffman {
       throws IOException {
     if (data == null)
       return;
-    
-    byte[] bytes = data.getBytes("UTF-8");
-    
-    BitBucket bucket = 
-      new BitBucket();
-    
-    for (int n = 0; n < bytes.length; n++) {
-      byte current = bytes[n];
-      if (current == 127)
-        throw new IllegalArgumentException();
-      if (within(current,0,127)) {
-        bucket.storeBit32(codeTable.get(current));
-      } else {
-        bucket.storeBit32(codeTable.get(current));
-        if (within(current,0xC2,0xDF)) {
-          storeContinuation(bytes[n+1],bucket);
-          n++;
-        } else if (within(current,0xE0,0xEF)) {
-          storeContinuation(bytes[n+1],bucket);
-          storeContinuation(bytes[n+2],bucket);
-          n += 2;
-        } else if (within(current,0xF0,0xF4)) {
-          storeContinuation(bytes[n+1],bucket);
-          storeContinuation(bytes[n+2],bucket);
-          storeContinuation(bytes[n+3],bucket);
-          n += 3;
-        } else {
-          throw new IllegalArgumentException();
-        }
-      }
-    }    
-    bucket.storeBit32(codeTable.getEof());
-    bucket.writeTo(out);
+    byte[] buf = 
+      new byte[codeTable.maxEncodedLength(data)];
+    int n = codeTable.encode(data, buf, 0);
+    out.write(buf, 0, n);
   }
       
   public static void decode(
@@ -75,9 +65,10 @@ public final class Huffman {
     Huffman codeTable,
     OutputStream out) 
       throws IOException {
-      BitBucket buf = 
-        new BitBucket(bytes);
-      codeTable.decodeFrom(buf, out);
+      byte[] buf = 
+        new byte[codeTable.maxDecodedLength(bytes.length)];
+      int n = codeTable.decode(bytes, 0, bytes.length, buf);
+      out.write(buf, 0, n);
   }
   
   private static HuffmanTableBuilder make() {
@@ -109,73 +100,312 @@ public final class Huffman {
   }
   
   private final ImmutableMap<Integer,IntPair> table;
-  private final Node root = new Node();
+  
+  /*
+   * Encoding looks codes up by UTF-8 byte value in flat arrays. 
+   * Codes are right aligned in codes[], lengths of 0 mark bytes 
+   * that have no code.
+   */
+  private final int[] codes = new int[256];
+  private final byte[] lengths = new byte[256];
+  private final int max_length;
+  
+  /*
+   * Decoding runs a finite state machine over the input eight bits
+   * at a time. The states are the internal nodes of the code tree
+   * (state 0 is the root) and transitions[state << 8 | bits] says
+   * what happens when the next eight bits are fed in from that
+   * state: either a symbol completes after the first n of them (the
+   * machine goes back to the root and resumes at the bit after the
+   * symbol), or all eight lead to another internal node.
+   * 
+   *   SYM | n << 8 | symbol
+   *         8 << 8 | next state
+   *   0              the bits are not a valid code
+   */
+  private static final int SYM = 0x8000;
+  private static final int STEP = 8;
+  private final char[] transitions;
+  private final int min_length;
   
   protected Huffman(HuffmanTableBuilder builder) {
     this.table = builder.table.build();
-    buildDecodeTable(builder);
-  }
-  
-  private void buildDecodeTable(HuffmanTableBuilder builder) {
     ImmutableSortedMap<IntPair,Integer> decode = 
       builder.decode.build();
+    int min = 32, max = 0;
     for (Map.Entry<IntPair,Integer> entry : decode.entrySet()) {
-      Node node = root;
-      BitBucket b = new BitBucket(entry.getKey().one());
-      int l = entry.getKey().two();
-      while(l > 0) {
-        boolean d = b.getBit();
-        Node n = node.get(d);
-        if (n == null)
-          node = node.set(d, new Node());
-        else node = n;
-        l--;
-      }
-      node.set(entry.getValue());
+      int n = entry.getKey().two();
+      int c = entry.getValue() & 0xFF;
+      codes[c] = entry.getKey().one() >>> (32 - n);
+      lengths[c] = (byte)n;
+      min = Math.min(min, n);
+      max = Math.max(max, n);
     }
+    this.min_length = min;
+    this.max_length = max;
+    this.transitions = buildTransitions(decode);
   }
   
-  private int decodeFrom(
-    BitBucket bit, 
-    OutputStream out) 
-      throws IOException {
-    int c = 0;
-    Node node = root;
-    while(true) {
-      boolean b = bit.getBit();
-      node = node.get(b);
-      c++;
-      if (node.sym() != null) {
-        byte sym = node.sym().byteValue();
-        if (sym == 127)
-          break;
-        out.write(sym);
-        if (!within(sym,0,127)) {
-          if (within(sym,0xC2,0xDF))
-            out.write(readContinuation(bit,1));
-          else if (within(sym,0xE0,0xEF))
-            out.write(readContinuation(bit,2));
-          else if (within(sym,0xF0,0xF4))
-            out.write(readContinuation(bit,3));
-          else
-            throw new IllegalArgumentException();
+  /**
+   * Builds the code tree as flat arrays, numbers the internal 
+   * nodes as states, then walks every eight bit input from every
+   * state to fill in the transitions
+   */
+  private static char[] buildTransitions(
+    ImmutableSortedMap<IntPair,Integer> decode) {
+    int cap = 2 * decode.size() + 1;
+    int[][] child = new int[2][cap];
+    int[] sym = new int[cap];
+    Arrays.fill(sym, -1);
+    int nodes = 1;
+    for (Map.Entry<IntPair,Integer> entry : decode.entrySet()) {
+      int code = entry.getKey().one();
+      int node = 0;
+      for (int l = entry.getKey().two(); l > 0; l--) {
+        int bit = code >>> 31;
+        code <<= 1;
+        if (child[bit][node] == 0)
+          child[bit][node] = nodes++;
+        node = child[bit][node];
+      }
+      sym[node] = entry.getValue() & 0xFF;
+    }
+    int[] state = new int[nodes];
+    int states = 0;
+    for (int node = 0; node < nodes; node++)
+      state[node] = sym[node] < 0 ? states++ : -1;
+    if (states > 1 << STEP)
+      throw new IllegalStateException();
+    char[] transitions = new char[states << STEP];
+    for (int node = 0; node < nodes; node++) {
+      if (sym[node] >= 0)
+        continue;
+      int row = state[node] << STEP;
+      for (int bits = 0; bits < 1 << STEP; bits++) {
+        int n = node, c = 0;
+        while (c < STEP && n >= 0 && sym[n] < 0) {
+          int next = child[(bits >>> (STEP - 1 - c)) & 1][n];
+          n = next != 0 ? next : -1;
+          c++;
         }
-        node = root;
+        if (n < 0)
+          continue; // not a valid code, stays 0
+        transitions[row | bits] = (char)(sym[n] >= 0 ?
+          SYM | c << 8 | sym[n] :
+          STEP << 8 | state[n]);
       }
     }
-    return c;
+    return transitions;
   }
   
-  private static byte[] readContinuation(BitBucket bucket, int c) {
-    byte[] ret = new byte[c];
-    while (c > 0) {
-      byte[] b = bucket.getBits(6);
-      b[0] = (byte)((b[0]&~0xFF00) >>> 2);
-      b[0] |= 0x80;
-      ret[ret.length-c] = b[0]; 
-      c--;
+  /**
+   * An upper bound on the encoded size of the string, without 
+   * looking at its content. A UTF-16 char is at most three UTF-8 
+   * bytes: one code plus two six bit continuations.
+   */
+  public int maxEncodedLength(CharSequence data) {
+    long bits = (long)data.length() * (max_length + 12) + max_length;
+    return (int)((bits + 7) / 8);
+  }
+  
+  /**
+   * The exact number of bytes encode() will produce for the
+   * string, worked out from the code lengths alone
+   */
+  public int encodedLength(CharSequence data) {
+    long bits = lengths[127];
+    int len = data.length();
+    for (int i = 0; i < len; i++) {
+      char c = data.charAt(i);
+      if (c < 0x80) {
+        bits += lengths[c];
+      } else if (c < 0x800) {
+        bits += lengths[0xC0 | c >>> 6] + 6;
+      } else if (c < Character.MIN_SURROGATE ||
+                 c > Character.MAX_SURROGATE) {
+        bits += lengths[0xE0 | c >>> 12] + 12;
+      } else if (Character.isHighSurrogate(c) &&
+                 i + 1 < len &&
+                 Character.isLowSurrogate(data.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, data.charAt(++i));
+        bits += lengths[0xF0 | cp >>> 18] + 18;
+      } else {
+        bits += lengths['?'];
+      }
     }
-    return ret;
+    return (int)((bits + 7) / 8);
+  }
+
+  /**
+   * Encodes the string straight from its chars into out starting 
+   * at off, followed by EOF and zero padding to a byte boundary.
+   * out must have room for encodedLength(data) bytes, or the 
+   * cheaper maxEncodedLength(data). Returns the number of bytes 
+   * written.
+   */
+  public int encode(
+    CharSequence data, 
+    byte[] out, 
+    int off) {
+    return encode(data, BitWriter.of(out, off));
+  }
+  
+  /**
+   * Encodes the string at the buffer's position, advancing it. 
+   * The buffer must have maxEncodedLength(data) bytes remaining.
+   */
+  public void encode(
+    CharSequence data, 
+    ByteBuffer out) {
+    if (out.remaining() < maxEncodedLength(data))
+      throw new BufferOverflowException();
+    encode(data, BitWriter.of(out));
+  }
+  
+  private int encode(
+    CharSequence data, 
+    BitWriter out) {
+    int len = data.length();
+    for (int i = 0; i < len; i++) {
+      char c = data.charAt(i);
+      if (c < 0x80) {
+        if (c == 127)
+          throw new IllegalArgumentException();
+        out.writeBits(codes[c], lengths[c]);
+        continue;
+      }
+      // UTF-8: the lead byte gets a code, each continuation byte
+      // is sent as its low six bits
+      int cp = c, lead, more;
+      if (c < 0x800) {
+        lead = 0xC0 | c >>> 6;
+        more = 1;
+      } else if (c < Character.MIN_SURROGATE || 
+                 c > Character.MAX_SURROGATE) {
+        lead = 0xE0 | c >>> 12;
+        more = 2;
+      } else if (Character.isHighSurrogate(c) && 
+                 i + 1 < len && 
+                 Character.isLowSurrogate(data.charAt(i + 1))) {
+        cp = Character.toCodePoint(c, data.charAt(++i));
+        lead = 0xF0 | cp >>> 18;
+        more = 3;
+      } else {
+        // unpaired surrogate, replaced like String.getBytes does
+        out.writeBits(codes['?'], lengths['?']);
+        continue;
+      }
+      if (lengths[lead] == 0)
+        throw new IllegalArgumentException();
+      out.writeBits(codes[lead], lengths[lead]);
+      for (int s = (more - 1) * 6; s >= 0; s -= 6)
+        out.writeBits(cp >>> s, 6);
+    }
+    out.writeBits(codes[127], lengths[127]);
+    return out.flush().length();
+  }
+  
+  /**
+   * An upper bound on the decoded size of len encoded bytes
+   */
+  int maxDecodedLength(int len) {
+    return len * 8 / Math.min(min_length, 6) + 1;
+  }
+  
+  /**
+   * Decodes straight to a String. The bytes are decoded into pooled
+   * scratch space; values that turn out to be all ASCII become the
+   * String without going through a charset decoder.
+   */
+  public String decode(
+    byte[] src, 
+    int off, 
+    int len) {
+    PooledBuffer scratch = 
+      BufferPool.heap().allocate(maxDecodedLength(len));
+    try {
+      byte[] buf = scratch.array();
+      int n = decode(src, off, len, buf);
+      return string(buf, n);
+    } finally {
+      scratch.release();
+    }
+  }
+  
+  /**
+   * Decodes the buffer's remaining bytes, advancing its position 
+   * to the limit
+   */
+  public String decode(ByteBuffer src) {
+    PooledBuffer scratch = 
+      BufferPool.heap().allocate(maxDecodedLength(src.remaining()));
+    try {
+      byte[] buf = scratch.array();
+      int n = decode(BitReader.of(src), buf);
+      src.position(src.limit());
+      return string(buf, n);
+    } finally {
+      scratch.release();
+    }
+  }
+  
+  /**
+   * UTF-8 bytes to a String, skipping the charset for ASCII
+   */
+  @SuppressWarnings("deprecation")
+  static String string(byte[] buf, int n) {
+    int high = 0;
+    for (int i = 0; i < n; i++)
+      high |= buf[i];
+    return high >= 0 ?
+      new String(buf, 0, 0, n) : // each byte is its own char
+      new String(buf, 0, n, Charsets.UTF_8);
+  }
+  
+  /**
+   * Decodes len bytes of input into out, which must have room for
+   * maxDecodedLength(len) bytes, stopping at the EOF symbol. 
+   * Returns the number of bytes written.
+   */
+  int decode(
+    byte[] in, 
+    int off, 
+    int len, 
+    byte[] out) {
+    return decode(BitReader.of(in, off, len), out);
+  }
+  
+  private int decode(
+    BitReader in, 
+    byte[] out) {
+    int state = 0;
+    int o = 0;
+    while (true) {
+      if (!in.hasMore())
+        throw new IllegalStateException();
+      int t = transitions[state << STEP | in.peekBits(8)];
+      if (t == 0)
+        throw new IllegalArgumentException();
+      in.skipBits((t >>> 8) & 0xF);
+      if ((t & SYM) == 0) {
+        state = t & 0xFF;
+        continue;
+      }
+      state = 0;
+      byte sym = (byte)t;
+      if (sym == 127)
+        break;
+      out[o++] = sym;
+      int c = FOLLOWING[sym & 0xFF];
+      if (c != 0) {
+        if (c < 0)
+          throw new IllegalArgumentException();
+        // continuation bytes are sent as their low six bits
+        for (; c > 0; c--)
+          out[o++] = (byte)(0x80 | in.readBits(6));
+      }
+    }
+    return o;
   }
   
   public void encode(
@@ -209,33 +439,133 @@ public final class Huffman {
   public IntPair getEof() {
     return get((char)127);
   }
-  
-  private static final class Node {
-    private Node l,r;
-    private Integer sym;
-    Node() {}
-    Node left(Node node) {
-      l = node;
-      return l;
-    }
-    Node right(Node node) {
-      r = node;
-      return r;
+
+  /* Custom tables */
+
+  public static final int MAX_CODE_LENGTH = 25;
+
+  /**
+   * True for the byte values a table has to cover: ASCII (with
+   * 127 as EOF) and the UTF-8 lead bytes 0xC2-0xF4
+   */
+  public static boolean isSymbol(int b) {
+    return (b >= 0 && b < 0x80) || (b >= 0xC2 && b <= 0xF4);
+  }
+
+  /**
+   * Builds a canonical table from code lengths indexed by
+   * (unsigned) byte value. Codes are handed out in order of
+   * length, then byte value, so the lengths are all that needs
+   * to be stored or agreed with the peer.
+   */
+  public static Huffman canonical(int[] lengths) {
+    checkArgument(lengths.length == 256);
+    long kraft = 0;
+    for (int s = 0; s < 256; s++) {
+      int n = lengths[s];
+      if (isSymbol(s))
+        checkArgument(
+          n > 0 && n <= MAX_CODE_LENGTH,
+          "Bad code length %s for symbol %s", n, s);
+      else
+        checkArgument(n == 0, "%s is not a symbol", s);
+      if (n > 0)
+        kraft += 1L << (MAX_CODE_LENGTH - n);
     }
-    Node set(boolean bit, Node node) {
-      return bit ? right(node) : left(node);
+    checkArgument(
+      kraft <= 1L << MAX_CODE_LENGTH,
+      "Code lengths don't form a prefix code");
+    HuffmanTableBuilder builder = make();
+    int code = 0;
+    for (int n = 1; n <= MAX_CODE_LENGTH; n++) {
+      for (int s = 0; s < 256; s++)
+        if (lengths[s] == n)
+          builder.add((byte)s, of(code++, n));
+      code <<= 1;
     }
-    void set(Integer sym) {
-      this.sym = sym;
+    return builder.get();
+  }
+
+  /**
+   * Code lengths indexed by (unsigned) byte value. Feeding them
+   * to canonical() gives a table that compresses exactly as well
+   * as this one, though the built in tables aren't canonical so
+   * the codes themselves differ.
+   */
+  public int[] codeLengths() {
+    int[] ret = new int[256];
+    for (int s = 0; s < 256; s++)
+      ret[s] = lengths[s];
+    return ret;
+  }
+
+  /**
+   * Reads a table stored with store()
+   */
+  public static Huffman load(
+    InputStream in)
+      throws IOException {
+    BufferedReader reader =
+      new BufferedReader(
+        new InputStreamReader(in, "US-ASCII"));
+    int[] lengths = new int[256];
+    String line = null;
+    while ((line = reader.readLine()) != null) {
+      line = line.trim();
+      if (line.length() == 0 || line.charAt(0) == '#')
+        continue;
+      String[] tokens = line.split("\\s+");
+      try {
+        if (tokens.length != 2)
+          throw new NumberFormatException();
+        int s = Integer.parseInt(tokens[0]);
+        checkArgument(s >= 0 && s < 256);
+        lengths[s] = Integer.parseInt(tokens[1]);
+      } catch (RuntimeException e) {
+        throw new IOException("Bad table line: " + line);
+      }
     }
-    Node get(boolean bit) {
-      return bit?r:l;
+    try {
+      return canonical(lengths);
+    } catch (IllegalArgumentException e) {
+      throw new IOException(e.getMessage());
     }
-    Integer sym() {
-      return sym;
+  }
+
+  /**
+   * Loads a table stored as a classpath resource
+   */
+  public static Huffman load(
+    String resource)
+      throws IOException {
+    InputStream in =
+      Huffman.class.getClassLoader()
+        .getResourceAsStream(resource);
+    if (in == null)
+      throw new FileNotFoundException(resource);
+    try {
+      return load(in);
+    } finally {
+      in.close();
     }
   }
-  
+
+  /**
+   * Writes the code lengths as text, one "symbol length" line per
+   * symbol, for load() to read back
+   */
+  public void store(
+    OutputStream out)
+      throws IOException {
+    Writer writer =
+      new OutputStreamWriter(out, "US-ASCII");
+    writer.write("# symbol length\n");
+    for (int s = 0; s < 256; s++)
+      if (lengths[s] > 0)
+        writer.write(s + " " + lengths[s] + "\n");
+    writer.flush();
+  }
+
   public static final Huffman REQUEST_TABLE = 
     make()
 .add(0, of(0x01fffffe,25))
@@ -0,0 +1,180 @@
+package snell.http2.headers;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static snell.http2.headers.Huffman.MAX_CODE_LENGTH;
+import static snell.http2.headers.Huffman.isSymbol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Builds a canonical Huffman table from sample header values, for
+ * traffic that doesn't look like what the built in tables were
+ * made from. Counts the same symbols the encoder codes: each
+ * ASCII char, the lead byte of each UTF-8 sequence and one EOF
+ * per value. Every symbol gets a code, seen or not.
+ *
+ * <code><pre>
+ * HuffmanTrainer trainer = HuffmanTrainer.make();
+ * for (String value : values)
+ *   trainer.add(value);
+ * trainer.get().store(out);
+ * </pre></code>
+ */
+public final class HuffmanTrainer
+  implements Supplier<Huffman> {
+
+  public static HuffmanTrainer make() {
+    return new HuffmanTrainer();
+  }
+
+  private final long[] counts = new long[256];
+  private int max_length = MAX_CODE_LENGTH;
+
+  private HuffmanTrainer() {}
+
+  /**
+   * Longest code to hand out, at most MAX_CODE_LENGTH
+   */
+  public HuffmanTrainer maxLength(int n) {
+    checkArgument(n >= 8 && n <= MAX_CODE_LENGTH);
+    this.max_length = n;
+    return this;
+  }
+
+  public HuffmanTrainer add(CharSequence value) {
+    int len = value.length();
+    for (int i = 0; i < len; i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        if (c != 127) // not encodable
+          counts[c]++;
+      } else if (c < 0x800) {
+        counts[0xC0 | c >>> 6]++;
+      } else if (c < Character.MIN_SURROGATE ||
+                 c > Character.MAX_SURROGATE) {
+        counts[0xE0 | c >>> 12]++;
+      } else if (Character.isHighSurrogate(c) &&
+                 i + 1 < len &&
+                 Character.isLowSurrogate(value.charAt(i + 1))) {
+        counts[0xF0 | Character.toCodePoint(c, value.charAt(++i)) >>> 18]++;
+      } else {
+        counts['?']++;
+      }
+    }
+    counts[127]++;
+    return this;
+  }
+
+  /**
+   * Code lengths indexed by byte value, limited to maxLength
+   */
+  public int[] lengths() {
+    final long[] weights = new long[256];
+    List<Integer> symbols = new ArrayList<Integer>();
+    for (int s = 0; s < 256; s++) {
+      if (isSymbol(s)) {
+        // unseen symbols still need a (long) code
+        weights[s] = counts[s] + 1;
+        symbols.add(s);
+      }
+    }
+    int[] depth = depths(symbols, weights);
+    int[] bl_count = new int[symbols.size()];
+    for (int s : symbols)
+      bl_count[depth[s]]++;
+    limit(bl_count, max_length);
+    // most frequent symbols take the shortest codes
+    Collections.sort(symbols, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        if (weights[a] != weights[b])
+          return weights[a] > weights[b] ? -1 : 1;
+        return a.compareTo(b);
+      }
+    });
+    int[] lengths = new int[256];
+    int n = 1;
+    for (int s : symbols) {
+      while (bl_count[n] == 0)
+        n++;
+      lengths[s] = n;
+      bl_count[n]--;
+    }
+    return lengths;
+  }
+
+  public Huffman get() {
+    return Huffman.canonical(lengths());
+  }
+
+  /**
+   * Plain Huffman code lengths, by merging the two lightest
+   * subtrees until one is left
+   */
+  private static int[] depths(
+    List<Integer> symbols,
+    long[] weights) {
+    int size = 2 * symbols.size();
+    final long[] weight = new long[size];
+    int[] parent = new int[size];
+    PriorityQueue<Integer> queue =
+      new PriorityQueue<Integer>(
+        symbols.size(),
+        new Comparator<Integer>() {
+          public int compare(Integer a, Integer b) {
+            if (weight[a] != weight[b])
+              return weight[a] < weight[b] ? -1 : 1;
+            return a.compareTo(b);
+          }
+      });
+    int nodes = 0;
+    for (int s : symbols) {
+      weight[nodes] = weights[s];
+      queue.add(nodes++);
+    }
+    while (queue.size() > 1) {
+      int a = queue.poll();
+      int b = queue.poll();
+      weight[nodes] = weight[a] + weight[b];
+      parent[a] = parent[b] = nodes;
+      queue.add(nodes++);
+    }
+    int root = nodes - 1;
+    int[] depth = new int[256];
+    for (int i = 0; i < symbols.size(); i++) {
+      int d = 0;
+      for (int n = i; n != root; n = parent[n])
+        d++;
+      depth[symbols.get(i)] = d;
+    }
+    return depth;
+  }
+
+  /**
+   * Pulls codes longer than max up into the tree, keeping it
+   * complete: a pair of leaves at the deepest level becomes one
+   * leaf a level up, and a leaf higher up becomes an internal node
+   * with two leaves under it (the JPEG length limiting scheme)
+   */
+  private static void limit(
+    int[] bl_count,
+    int max) {
+    for (int i = bl_count.length - 1; i > max; i--) {
+      while (bl_count[i] > 0) {
+        int j = i - 2;
+        while (bl_count[j] == 0)
+          j--;
+        bl_count[i] -= 2;
+        bl_count[i - 1]++;
+        bl_count[j + 1] += 2;
+        bl_count[j]--;
+      }
+    }
+  }
+
+}
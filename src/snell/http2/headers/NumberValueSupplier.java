@@ -2,9 +2,9 @@ package snell.http2.headers;
 
 import static com.google.common.primitives.UnsignedInteger.fromIntBits;
 import static com.google.common.primitives.UnsignedLong.fromLongBits;
-import static snell.http2.utils.IoUtils.int2uvarint;
 import static snell.http2.utils.IoUtils.uvarint2long;
 import static snell.http2.utils.IoUtils.unsignedBytes;
+import static snell.http2.utils.IoUtils.writeUvarint;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -142,7 +142,10 @@ public class NumberValueSupplier
    * Format is [num_items][uvarint]...[uvarint]
    */
   public void writeTo(OutputStream buffer) throws IOException {
-    buffer.write(int2uvarint(val));
+    if (val.length == 4)
+      writeUvarint(buffer, intVal());
+    else
+      writeUvarint(buffer, longVal());
   } 
 
   @Override
@@ -205,8 +208,12 @@ public class NumberValueSupplier
     return longVal();
   }
 
+  /**
+   * The encoded length, which is the same whichever width the 
+   * number was created with
+   */
   @Override
   public int length() {
-    return val.length;
+    return size;
   }
 }
@@ -4,27 +4,35 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.collect.ImmutableList.copyOf;
 import static com.google.common.collect.Iterables.size;
-import static snell.http2.utils.IoUtils.int2uvarint;
-import static snell.http2.utils.IoUtils.readLengthPrefixedData;
+import static snell.http2.headers.HeaderChars.valueLength;
+import static snell.http2.headers.HeaderChars.writeValue;
+import static snell.http2.utils.IoUtils.size;
+import static snell.http2.utils.IoUtils.uvarint2int;
+import static snell.http2.utils.IoUtils.writeUvarint;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import snell.http2.utils.BufferPool;
+import snell.http2.utils.PooledBuffer;
+
 
 import com.google.common.base.Joiner;
-import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.io.ByteStreams;
 
 public class StringValueSupplier 
   extends ValueSupplier<Iterable<String>> {
 
   private final ImmutableList<String> strings;
   private final Huffman huffman;
-  private transient int length = 0;
+  private final int[] lengths;
+  private final int length;
+  private transient int[] coded;
   private transient int hash = 1;
+  private transient int raw = -1;
   
   public StringValueSupplier(
     String... strings) {
@@ -51,13 +59,57 @@ public class StringValueSupplier
     checkArgument(size > 0 && size <= 32);
     this.huffman = huffman;
     this.strings = copyOf(strings);
+    this.lengths = new int[size];
+    int length = 0;
+    for (int i = 0; i < size; i++)
+      length += lengths[i] = valueLength(this.strings.get(i));
+    this.length = length;
   }
   
+  /**
+   * FLAG_RESERVED marks values sent as plain UTF-8 rather than
+   * Huffman coded
+   */
   @Override
   public byte flags() {
     byte flags = super.flags();
+    if (raw())
+      flags |= FLAG_RESERVED;
     return (byte)(flags | (byte)(strings.size() - 1));
   }
+  
+  /**
+   * True if the strings go out as plain UTF-8, either because
+   * there's no Huffman table or because coding would make them
+   * bigger, e.g. for base64 tokens and random ids. The choice is
+   * made for all of the strings together from their lengths alone.
+   */
+  private boolean raw() {
+    if (raw < 0) {
+      boolean r = huffman == null;
+      if (!r) {
+        int[] coded = new int[lengths.length];
+        int total = 0, plain = 0;
+        for (int i = 0; i < coded.length; i++) {
+          int c = coded[i] = huffman.encodedLength(strings.get(i));
+          int p = lengths[i];
+          total += size(c) + c;
+          plain += size(p) + p;
+        }
+        r = plain < total;
+        this.coded = coded;
+      }
+      raw = r ? 1 : 0;
+    }
+    return raw == 1;
+  }
+  
+  private static int max(int[] lengths) {
+    int max = 0;
+    for (int l : lengths)
+      max = Math.max(max, l);
+    return max;
+  }
 
   @Override
   /**
@@ -66,21 +118,22 @@ public class StringValueSupplier
   public void writeTo(
     OutputStream buffer) 
       throws IOException {
-    ByteArrayOutputStream buf = 
-    new ByteArrayOutputStream();
-    for (String string : strings) {
-      byte[] data = null;
-      if (huffman != null) {
-        ByteArrayOutputStream comp = 
-          new ByteArrayOutputStream();
-        huffman.encode(string, comp);
-        data = comp.toByteArray();
-      } else
-        data = string.getBytes("UTF-8");
-      buf.write(int2uvarint(data.length));
-      buf.write(data);
+    boolean raw = raw();
+    PooledBuffer scratch = 
+      BufferPool.heap().allocate(max(raw ? lengths : coded));
+    try {
+      byte[] data = scratch.array();
+      for (int i = 0; i < lengths.length; i++) {
+        String string = strings.get(i);
+        int n = raw ?
+          writeValue(string, data) :
+          huffman.encode(string, data, 0);
+        writeUvarint(buffer, n);
+        buffer.write(data, 0, n);
+      }
+    } finally {
+      scratch.release();
     }
-    buffer.write(buf.toByteArray());
   }
 
   private static final Joiner joiner = Joiner.on(", ");
@@ -119,23 +172,39 @@ public class StringValueSupplier
       ImmutableList.Builder<String> strings = 
         ImmutableList.builder();
       int c = flags & ~0xE0;
-      while (c >= 0) {
-        if (huffman == null)
-          throw new IllegalStateException();
-        ByteArrayOutputStream comp =
-          new ByteArrayOutputStream();
-        byte[] data = 
-          readLengthPrefixedData(in);
-        huffman.decode(data, comp);
-        strings.add(
-          new String(
-            comp.toByteArray(), 
-            "UTF-8")); 
-        c--;
+      boolean raw = flag(flags, FLAG_RESERVED);
+      if (!raw && huffman == null)
+        throw new IllegalStateException();
+      PooledBuffer data = null;
+      try {
+        while (c >= 0) {
+          int len = uvarint2int(in);
+          if (data == null || data.capacity() < len) {
+            if (data != null)
+              data.release();
+            data = BufferPool.heap().allocate(len);
+          }
+          byte[] buf = data.array();
+          if (ByteStreams.read(in, buf, 0, len) < len)
+            throw new IllegalStateException();
+          strings.add(
+            raw ?
+              Huffman.string(buf, len) :
+              huffman.decode(buf, 0, len));
+          c--;
+        }
+      } finally {
+        if (data != null)
+          data.release();
+      }
+      try {
+        return new StringValueSupplier(
+          huffman,
+          strings.build());
+      } catch (IllegalArgumentException e) {
+        // e.g. CR or LF, which the peer mustn't send either
+        throw new IOException("Illegal header value", e);
       }
-      return new StringValueSupplier(
-        huffman,
-        strings.build());
     }
     
   }
@@ -177,18 +246,15 @@ public class StringValueSupplier
 
   @Override
   public int length() {
-    if (length == 0)
-      for (String s : strings)
-        length += length(s);
     return length;
   }
-
-  private int length(String s) {
-    try {
-      byte[] m = s.getBytes("UTF-8");
-      return m.length;
-    } catch (Throwable t) {
-      throw Throwables.propagate(t);
-    }
+  
+  /**
+   * Each string behind its own length. Huffman is only used when 
+   * it comes out shorter than plain UTF-8.
+   */
+  @Override
+  public int maxEncodedLength() {
+    return 5 * lengths.length + length;
   }
 }
@@ -41,6 +41,13 @@ public abstract class ValueSupplier<X>
 
   public abstract int length();
   
+  /**
+   * The most writeTo() can write: the value behind a uvarint length
+   */
+  public int maxEncodedLength() {
+    return 5 + length();
+  }
+  
   public byte flags() {
     return flags;
   }
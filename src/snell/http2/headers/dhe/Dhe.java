@@ -1,18 +1,21 @@
 package snell.http2.headers.dhe;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static snell.http2.headers.dhe.Header.TYPE_CLONE;
 import static snell.http2.headers.dhe.Header.TYPE_INDEX;
 import static snell.http2.headers.dhe.Header.TYPE_LITERAL;
 import static snell.http2.headers.dhe.Header.TYPE_RANGE;
+import static snell.http2.utils.IoUtils.size;
+import static snell.http2.utils.IoUtils.uvarint2int;
+import static snell.http2.utils.IoUtils.writeUvarint;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import snell.http2.headers.HeaderName;
 import snell.http2.headers.HeaderSerializer;
 import snell.http2.headers.HeaderSet;
 import snell.http2.headers.HeaderSetter;
@@ -27,9 +30,7 @@ import snell.http2.headers.dhe.Header.Literal;
 import snell.http2.headers.dhe.Header.LiteralInstance;
 import snell.http2.headers.dhe.Header.Range;
 import snell.http2.headers.dhe.Header.RangeInstance;
-
-import com.google.common.collect.ImmutableSet;
-import com.google.common.io.ByteStreams;
+import snell.http2.utils.PooledOutputStream;
 
 public final class Dhe 
   implements HeaderSerializer {
@@ -44,6 +45,9 @@ public final class Dhe
       this.huffman = huffman;
     }
     
+    /**
+     * The default table for the mode
+     */
     public Huffman huffman() {
       return huffman;
     }
@@ -56,13 +60,56 @@ public final class Dhe
   public static Dhe forResponse() {
     return new Dhe(Mode.RESPONSE);
   }
+  
+  public static Dhe forRequest(Huffman huffman) {
+    return new Dhe(Mode.REQUEST, huffman);
+  }
+  
+  public static Dhe forResponse(Huffman huffman) {
+    return new Dhe(Mode.RESPONSE, huffman);
+  }
+
+  /**
+   * The table limits each end starts with, until the decoder 
+   * advertises others in SETTINGS
+   */
+  public static final int DEFAULT_TABLE_SIZE = 4096;
+  public static final int DEFAULT_TABLE_ENTRIES = Storage.MAX_ENTRIES;
+  
+  /**
+   * Leads a block that resizes the table: the marker, the new byte
+   * and entry limits as uvarints, then the usual count byte. Counts
+   * are never below -1, so the marker can't be mistaken for one.
+   */
+  private static final byte TABLE_SIZE_UPDATE = (byte)0x80;
 
   private final Mode mode;
+  private final Huffman huffman;
   private final Storage storage = 
-    new Storage();
+    new Storage(DEFAULT_TABLE_SIZE);
+  
+  // encoding: a resize to announce with the next block, or -1
+  private int resize_length = -1;
+  private int resize_count = -1;
+  
+  // decoding: the limits we last advertised, and the largest a 
+  // resize may ask for until the peer has caught up with them
+  private int limit_length = DEFAULT_TABLE_SIZE;
+  private int limit_count = DEFAULT_TABLE_ENTRIES;
+  private int allowed_length = DEFAULT_TABLE_SIZE;
+  private int allowed_count = DEFAULT_TABLE_ENTRIES;
   
   public Dhe(Mode mode) {
-    this.mode = mode;
+    this(mode, mode.huffman());
+  }
+  
+  /**
+   * Uses a custom table (e.g. from Huffman.load()) in place of
+   * the mode's default. Both ends must use the same one.
+   */
+  public Dhe(Mode mode, Huffman huffman) {
+    this.mode = checkNotNull(mode);
+    this.huffman = checkNotNull(huffman);
   }
   
   public Storage storage() {
@@ -75,65 +122,150 @@ public final class Dhe
   
   @Override
   public Huffman huffman() {
-    return mode.huffman();
+    return huffman;
+  }
+  
+  /**
+   * For the encoder, when the peer's decoder advertises its limits.
+   * The table is resized, evicting as needed, at the start of the 
+   * next block, which tells the decoder to do the same. Entries 
+   * beyond Storage.MAX_ENTRIES are ignored.
+   */
+  public void resize(
+    int max_length, 
+    int max_count) {
+      checkArgument(max_length >= 0);
+      checkArgument(max_count >= 0);
+      resize_length = max_length;
+      resize_count = Math.min(max_count, Storage.MAX_ENTRIES);
+  }
+  
+  /**
+   * For the decoder, the most table it will hold, to be advertised
+   * to the peer in SETTINGS. A block resizing past it fails. When 
+   * the limits shrink, blocks the peer sent before it saw them may
+   * still use the old ones, so those are allowed until the peer 
+   * resizes within the new ones.
+   */
+  public void limit(
+    int max_length, 
+    int max_count) {
+      checkArgument(max_length >= 0);
+      checkArgument(max_count >= 0);
+      limit_length = max_length;
+      limit_count = Math.min(max_count, Storage.MAX_ENTRIES);
+      allowed_length = Math.max(allowed_length, limit_length);
+      allowed_count = Math.max(allowed_count, limit_count);
   }
 
-  private static final ImmutableSet<String> 
-    ALWAYS_EPHEMERAL = 
-      ImmutableSet.of(
-        "authorization",       // never store credentials in memory!
-        "proxy-authorization"
-      );
+  private static boolean alwaysEphemeral(HeaderName name) {
+    return 
+      name == HeaderName.AUTHORIZATION || // never store credentials in memory!
+      name == HeaderName.PROXY_AUTHORIZATION;
+  }
   
+  /**
+   * Writes the block straight into the stream when it's a
+   * PooledOutputStream, otherwise through pooled scratch space
+   */
   @Override
   public void serialize(
     OutputStream buffer, 
     HeaderSet<?> map)
       throws IOException {
-    ByteArrayOutputStream rest_buf = 
-      new ByteArrayOutputStream();
-    Storage storage = storage();
+    if (buffer instanceof PooledOutputStream) {
+      serialize((PooledOutputStream)buffer, map, Integer.MAX_VALUE);
+      return;
+    }
+    PooledOutputStream out = 
+      new PooledOutputStream();
+    try {
+      serialize(out, map, Integer.MAX_VALUE);
+      out.writeTo(buffer);
+    } finally {
+      out.release();
+    }
+  }
+  
+  /**
+   * Appends the headers to out as one or more complete blocks, 
+   * starting another whenever the next header would take the 
+   * current one past max_block bytes (or past 128 headers). Each 
+   * block decodes on its own, in order, so each can be sent in its
+   * own HEADERS frame as is. A pending table size update goes in 
+   * front of the first block and counts against it. Returns the 
+   * offset in out at which each block ends. Throws 
+   * IllegalArgumentException, before the tables are touched, when
+   * a single header can't fit in a block.
+   */
+  public int[] serialize(
+    PooledOutputStream out, 
+    HeaderSet<?> map,
+    int max_block)
+      throws IOException {
+    if (resize_length >= 0)
+      max_block -= 1 + 
+        size(resize_length) + 
+        size(resize_count);
+    if (max_block < Integer.MAX_VALUE)
+      for (HeaderName name : map)
+        for (ValueSupplier<?> val : map.get(name))
+          checkArgument(
+            BuilderContext.maxLength(name, val) < max_block,
+            "header %s does not fit in %s bytes", 
+            name, max_block);
+    if (resize_length >= 0) {
+      out.write(TABLE_SIZE_UPDATE);
+      writeUvarint(out, resize_length);
+      writeUvarint(out, resize_count);
+      storage.resize(resize_length, resize_count);
+      resize_length = resize_count = -1;
+    }
     BuilderContext ctx = 
-      new BuilderContext(storage);
-    int c = 0;
-    for (String name : map) {
-      name = name.toLowerCase();
-      for (ValueSupplier<?> val : map.get(name)) {
-        boolean ephemeral = 
-          ALWAYS_EPHEMERAL.contains(name);
-        try {
-          byte idx = storage.indexOf(name, val);
-          if (ctx.index(idx, rest_buf)) 
-            c++;
-        } catch (RuntimeException r) {
-          try {
-            byte idx = storage.indexOfName(name);
-            if (ctx.cloned(idx, val, ephemeral, rest_buf)) 
-              c++;
-          } catch (RuntimeException r2) {
-            if (ctx.literal(name, val, ephemeral, rest_buf))
-              c++;
-          }
-        }
-      }
+      new BuilderContext(storage());
+    ctx.begin(out, max_block);
+    for (HeaderName name : map) {
+      boolean ephemeral = 
+        alwaysEphemeral(name);
+      for (ValueSupplier<?> val : map.get(name))
+        ctx.add(name, val, ephemeral, out);
     }  
-    c += ctx.writeRemaining(rest_buf);
-    buffer.write((byte)(c-1));
-    ByteStreams.copy(
-      new ByteArrayInputStream(
-        rest_buf.toByteArray()), 
-        buffer);
+    ctx.writeRemaining(out);
+    return ctx.end();
   }
     
+  /**
+   * Reads blocks until the stream ends, as serialize() may have 
+   * split the headers over several. The stream must end with the 
+   * payload.
+   */
   @Override
   public void deserialize(
     InputStream in, 
     HeaderSetter<?> set)
       throws IOException {
-    Storage storage = storage();
     byte[] c = new byte[1];
     int r = in.read(c);
     checkState(r >= 0);
+    do {
+      deserializeBlock(c[0], in, set);
+    } while (in.read(c) == 1);
+  }
+  
+  private void deserializeBlock(
+    byte count,
+    InputStream in, 
+    HeaderSetter<?> set)
+      throws IOException {
+    Storage storage = storage();
+    byte[] c = {count};
+    if (c[0] == TABLE_SIZE_UPDATE) {
+      int max_length = uvarint2int(in);
+      int max_count = uvarint2int(in);
+      resized(max_length, max_count);
+      int r = in.read(c);
+      checkState(r >= 0);
+    }
     while(c[0] >= 0) {
       Header<?> header = 
         Header.parse(
@@ -155,31 +287,28 @@ public final class Dhe
         for (RangeInstance ri : range) {
           byte start = ri.start();
           byte end = ri.end();
-          for (byte idx = start; idx <= end; idx++)
+          for (int idx = start; idx <= end; idx++) // an int, as end may be 127
             set.set(
-              checkNotNull(storage.nameOf(idx)),
-              storage.valueOf(idx));
+              checkNotNull(storage.nameOf((byte)idx)),
+              storage.valueOf((byte)idx));
         }
         break;
       case TYPE_CLONE:
         Clone clone = header.cast();
         for (CloneInstance ci : clone) {
-          byte idx = ci.index();
+          HeaderName name = ci.name();
           ValueSupplier<?> value = ci.value();
-          String name = storage.nameOf(idx);
-          if (name != null) {
-            set.set(
-              name, 
-              value);
-            if (!clone.ephemeral())
-              storage.push(name, value);
-          }
+          set.set(
+            name, 
+            value);
+          if (!clone.ephemeral())
+            storage.push(name, value);
         }
         break;
       case TYPE_LITERAL:
         Literal literal = header.cast();
         for (LiteralInstance li : literal) {
-          String name = li.name();
+          HeaderName name = li.name();
           ValueSupplier<?> val = li.value();
           set.set(name,val);
           if (!literal.ephemeral())
@@ -192,5 +321,20 @@ public final class Dhe
       c[0]--;
     }
   }
+  
+  private void resized(
+    int max_length, 
+    int max_count)
+      throws IOException {
+    if (max_length < 0 || max_length > allowed_length ||
+        max_count < 0 || max_count > allowed_count)
+      throw new IOException(
+        "Header table resized beyond the advertised limit");
+    storage.resize(max_length, max_count);
+    if (max_length <= limit_length && max_count <= limit_count) {
+      allowed_length = limit_length;
+      allowed_count = limit_count;
+    }
+  }
 
 }
@@ -5,13 +5,15 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.collect.Iterables.elementsEqual;
-import static snell.http2.utils.IoUtils.writeLengthPrefixedString;
+import static snell.http2.utils.IoUtils.writeUvarint;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Iterator;
 
+import snell.http2.headers.HeaderName;
 import snell.http2.headers.Huffman;
 import snell.http2.headers.ValueSupplier;
 import snell.http2.headers.StringValueSupplier.StringValueParser;
@@ -20,11 +22,11 @@ import snell.http2.headers.DateTimeValueSupplier.DateTimeValueParser;
 import snell.http2.headers.NumberValueSupplier.NumberValueParser;
 import snell.http2.headers.ValueSupplier.ValueParser;
 import snell.http2.utils.IoUtils;
+import snell.http2.utils.PooledOutputStream;
 
 import com.google.common.base.Function;
 import com.google.common.base.Supplier;
 import com.google.common.collect.BoundType;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.TreeRangeSet;
 
@@ -449,20 +451,31 @@ public abstract class Header<I extends Header.Instance>
         }
   };
   
+  /**
+   * The name is resolved when the instance is made, before anything
+   * else in the block is stored, as the entry at index may be 
+   * evicted by the time the instance itself is stored
+   */
   public static final class CloneInstance
     implements Instance {
     private final byte index;
+    private final HeaderName name;
     private final ValueSupplier<?> value;
     private transient int hash = 1;
     protected CloneInstance(
       byte index, 
+      HeaderName name,
       ValueSupplier<?> value) {
       this.index = index;
+      this.name = name;
       this.value = value;
     }
     public byte index() {
       return index;
     }
+    public HeaderName name() {
+      return name;
+    }
     @SuppressWarnings("unchecked")
     public <V extends ValueSupplier<?>>V value() {
       return (V)value;
@@ -473,10 +486,8 @@ public abstract class Header<I extends Header.Instance>
       Storage storage,
       boolean ephemeral) 
         throws IOException {
-      if (!ephemeral) {
-        String name = storage.nameOf(index);
+      if (!ephemeral)
         storage.push(name,value);
-      }
       out.write(index);
       out.write(value.flags());
       value.writeTo(out);
@@ -516,8 +527,15 @@ public abstract class Header<I extends Header.Instance>
       super(storage);
     }
     public CloneBuilder value(byte idx, ValueSupplier<?> value) {
+      return value(idx, storage().nameOf(idx), value);
+    }
+    private CloneBuilder value(
+      byte idx, 
+      HeaderName name, 
+      ValueSupplier<?> value) {
+      checkNotNull(name);
       checkNotNull(value);
-      add(new CloneInstance(idx,value));
+      add(new CloneInstance(idx,name,value));
       return this;
     }
     public Clone get() {
@@ -533,13 +551,13 @@ public abstract class Header<I extends Header.Instance>
         byte[] b = new byte[2];
         int r = in.read(b);
         checkState(r == 2);
-        String name = storage().nameOf(b[0]);
+        HeaderName name = storage().nameOf(b[0]);
         checkNotNull(name);
         ValueSupplier<?> val = 
           selectValueParser(b[1],storage(),name)
             .useHuffman(huffman)
             .parse(in, b[1]);
-        value(b[0],val);
+        value(b[0],name,val);
         count--;
       }
       return this;
@@ -548,16 +566,16 @@ public abstract class Header<I extends Header.Instance>
 
   public static final class LiteralInstance 
     implements Instance {
-    private final String name;
+    private final HeaderName name;
     private final ValueSupplier<?> value;
     private transient int hash = 1;
     protected LiteralInstance(
-      String name, 
+      HeaderName name, 
       ValueSupplier<?> value) {
       this.name = name;
       this.value = value;
     }
-    public String name() {
+    public HeaderName name() {
       return name;
     }
     @SuppressWarnings("unchecked")
@@ -574,7 +592,8 @@ public abstract class Header<I extends Header.Instance>
         storage.push(
           name, 
           value);
-      writeLengthPrefixedString(out, name);
+      writeUvarint(out, name.length());
+      name.writeTo(out);
       out.write(value.flags());
       value.writeTo(out);
     }
@@ -614,7 +633,7 @@ public abstract class Header<I extends Header.Instance>
     public LiteralBuilder(Storage storage) {
       super(storage);
     }
-    public LiteralBuilder value(String name, ValueSupplier<?> value) {
+    public LiteralBuilder value(HeaderName name, ValueSupplier<?> value) {
       checkNotNull(name);
       checkNotNull(value);
       add(new LiteralInstance(name,value));
@@ -630,9 +649,14 @@ public abstract class Header<I extends Header.Instance>
       Huffman huffman) 
         throws IOException {
       while(count >= 0) {
-        String name = 
-          IoUtils.readLengthPrefixedString(
-            in, "ISO-8859-1");
+        byte[] data = 
+          IoUtils.readLengthPrefixedData(in);
+        HeaderName name;
+        try {
+          name = HeaderName.of(data, 0, data.length);
+        } catch (IllegalArgumentException e) {
+          throw new IOException("Illegal header name", e);
+        }
         byte[] b = new byte[1];
         int r = in.read(b);
         checkState(r == 1);
@@ -658,15 +682,127 @@ public abstract class Header<I extends Header.Instance>
     private LiteralBuilder literal;
     private LiteralBuilder ephemeral_literal;
     private final Storage storage;
+    private PooledOutputStream blocks;
+    private int max_block;
+    private int block_start;
+    private int block_count;
+    private int[] block_ends;
+    private int block_end_count;
+    private int pending;
     
     public BuilderContext(Storage storage) {
+      this.storage = storage;
       reset(TYPE_INDEX,false);
       reset(TYPE_RANGE,false);
       reset(TYPE_CLONE,false);
       reset(TYPE_CLONE,true);
       reset(TYPE_LITERAL,false);
       reset(TYPE_LITERAL,true);
-      this.storage = storage;
+    }
+    
+    /**
+     * Writes complete blocks into out from here on, each a count 
+     * byte followed by at most 128 headers. The count is reserved 
+     * and patched in once the block is done. A new block starts 
+     * whenever a header would take the current one past max_block 
+     * bytes, unless the block is still empty. Headers written to 
+     * out go into the blocks; end() closes the last one.
+     */
+    public void begin(
+      PooledOutputStream out,
+      int max_block) {
+        checkNotNull(out);
+        checkArgument(max_block > 1);
+        this.blocks = out;
+        this.max_block = max_block;
+        this.block_ends = new int[1];
+        this.block_end_count = 0;
+        open(out.size());
+    }
+    
+    private void open(int start) {
+      blocks.insert(start, 0);
+      block_start = start;
+      block_count = 0;
+    }
+    
+    private void close(int end) {
+      blocks.patch(block_start, block_count - 1);
+      if (block_end_count == block_ends.length)
+        block_ends = Arrays.copyOf(block_ends, block_end_count * 2);
+      block_ends[block_end_count++] = end;
+    }
+    
+    /**
+     * Closes the last block. Returns the offset in out at which 
+     * each block ends.
+     */
+    public int[] end() {
+      checkState(blocks != null);
+      close(blocks.size());
+      blocks = null;
+      return Arrays.copyOf(block_ends, block_end_count);
+    }
+    
+    private void write(
+      Header<?> header,
+      OutputStream out)
+        throws IOException {
+      if (out != blocks) {
+        header.writeTo(out,storage);
+        return;
+      }
+      int start = blocks.size();
+      header.writeTo(out,storage);
+      if (block_count == 128 || 
+          (block_count > 0 && 
+           blocks.size() - block_start > max_block)) {
+        close(start);
+        open(start);
+      }
+      block_count++;
+    }
+    
+    /**
+     * The most the pair can add to a block: a literal in a header
+     * of its own
+     */
+    public static int maxLength(
+      HeaderName name,
+      ValueSupplier<?> val) {
+        return 2 + 
+          IoUtils.size(name.length()) + 
+          name.length() + 
+          val.maxEncodedLength();
+    }
+    
+    /**
+     * Adds the pair as an index, a clone of a stored name, or a 
+     * literal, whichever the storage allows. Returns true if that 
+     * wrote out a full header. When writing blocks, everything 
+     * pending is written first if the pair could take it past what
+     * fits in a block beside the count byte, so a header only 
+     * overflows a block when the pair alone can't fit.
+     */
+    public boolean add(
+      HeaderName name,
+      ValueSupplier<?> val,
+      boolean ephemeral,
+      OutputStream out)
+        throws IOException {
+      int max = maxLength(name, val);
+      if (blocks != null && 
+          pending > 0 && 
+          pending + max > max_block - 1)
+        writeRemaining(out);
+      pending += max;
+      int found = storage.lookup(name, val);
+      if ((found & Storage.MATCH) != 0)
+        return index((byte)found, out);
+      else if ((found & Storage.NAME_MATCH) != 0)
+        return cloned((byte)found, val, ephemeral, out);
+      else
+        return literal(name, val, ephemeral, out);
     }
     
     public boolean index(
@@ -700,7 +836,7 @@ public abstract class Header<I extends Header.Instance>
     }
     
     public boolean literal(
-      String name,
+      HeaderName name,
       ValueSupplier<?> val,
       boolean ephemeral,
       OutputStream out)
@@ -753,6 +889,10 @@ public abstract class Header<I extends Header.Instance>
         }
     }
 
+    /**
+     * Once a group is full, writes out every group, so that nothing
+     * is stored between looking up an index and writing it
+     */
     public boolean writeAndResetIfFull(
       byte code, 
       boolean ephemeral,
@@ -762,45 +902,56 @@ public abstract class Header<I extends Header.Instance>
         builder(code,ephemeral);
       if (b != null) {
         if (b.count() == 32) {
-          b.get().writeTo(out,storage);
-          reset(code,ephemeral);
+          writeRemaining(out);
           return true;
         }
       }
       return false;
     }
     
+    /**
+     * Writes and resets the groups with anything in them, indexes 
+     * first, then the groups that store entries
+     */
     public int writeRemaining(
       OutputStream out) 
         throws IOException {
+      pending = 0;
       int c = 0;
-      if (index.count() > 0)
+      if (index.count() > 0) {
         for (Header<?> h : index.get().coallesce()) {
-          h.writeTo(out,storage);
+          write(h,out);
           c++;
         }
-      ImmutableList<HeaderBuilder<?,?,?>> list = 
-        ImmutableList.<HeaderBuilder<?,?,?>>of(
-          range,
-          cloned,
-          ephemeral_cloned,
-          literal,
-          ephemeral_literal);
-      for (HeaderBuilder<?,?,?> b : list) {
-        
-        if (b.count() > 0) {
-          b.get().writeTo(out,storage);
-          c++;
-        } 
+        reset(TYPE_INDEX,false);
       }
+      c += writeAndReset(TYPE_RANGE,false,out);
+      c += writeAndReset(TYPE_CLONE,false,out);
+      c += writeAndReset(TYPE_CLONE,true,out);
+      c += writeAndReset(TYPE_LITERAL,false,out);
+      c += writeAndReset(TYPE_LITERAL,true,out);
       return c;
     }
+    
+    private int writeAndReset(
+      byte code, 
+      boolean ephemeral,
+      OutputStream out)
+        throws IOException {
+      HeaderBuilder<?,?,?> b = 
+        builder(code,ephemeral);
+      if (b.count() == 0)
+        return 0;
+      write(b.get(),out);
+      reset(code,ephemeral);
+      return 1;
+    }
   }
 
   static final ValueParser<?,?> selectValueParser(
     byte flags, 
     Storage storage, 
-    String name) {
+    HeaderName name) {
     switch((byte)(flags & ~0x3F)) {
     case 0x0: 
       return new StringValueParser();
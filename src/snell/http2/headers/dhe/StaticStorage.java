@@ -3,39 +3,115 @@ package snell.http2.headers.dhe;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import snell.http2.headers.HeaderName;
 import snell.http2.headers.NumberValueSupplier;
 import snell.http2.headers.StringValueSupplier;
 import snell.http2.headers.ValueSupplier;
 
 
+/**
+ * The static table. It never changes after loading, so one 
+ * instance is shared by every Storage. Both kinds of lookup take 
+ * a single probe: names through their HeaderName id, pairs through
+ * a collision free hash table built when the class loads.
+ */
 class StaticStorage 
   extends Storage {
   
-  StaticStorage() {
+  private static final int PAIR_BITS = 11;
+  
+  /**
+   * Index of the last entry for each well known name, by id
+   */
+  private final byte[] names = 
+    new byte[HeaderName.known()];
+  
+  /**
+   * The slot of each pair, by bucket(hash, seed); -1 if empty
+   */
+  private final byte[] pairs = 
+    new byte[1 << PAIR_BITS];
+  private int seed;
+  
+  private StaticStorage() {
     super(null);
     loadDefaults();
+    hashPairs();
   }
   
   @Override
-  public byte push(String name, ValueSupplier<?> value) {
+  public byte push(HeaderName name, ValueSupplier<?> value) {
     throw new UnsupportedOperationException();
   }
+  
+  @Override
+  int nameIndex(HeaderName name) {
+    return name.id() >= 0 ? names[name.id()] : -1;
+  }
+  
+  @Override
+  int itemIndex(Item item) {
+    int hash = item.hashCode();
+    int s = pairs[bucket(hash, seed)];
+    if (s < 0)
+      return -1;
+    Item other = item(s);
+    return other.hashCode() == hash && other.equals(item) ? s : -1;
+  }
+  
+  private static int bucket(int hash, int seed) {
+    return (hash * seed) >>> (32 - PAIR_BITS);
+  }
+  
+  /**
+   * Tries odd multipliers until every pair gets a bucket of its
+   * own. With about 120 pairs in 2048 buckets that takes a few 
+   * dozen attempts.
+   */
+  private void hashPairs() {
+    int seed = 0x9E3779B9;
+    for (int attempt = 0; attempt < 1 << 16; attempt++) {
+      Arrays.fill(pairs, (byte)-1);
+      boolean perfect = true;
+      for (int s = 0; s < size() && perfect; s++) {
+        int b = bucket(item(s).hashCode(), seed);
+        perfect = pairs[b] == -1;
+        pairs[b] = (byte)s;
+      }
+      if (perfect) {
+        this.seed = seed;
+        return;
+      }
+      seed += 0x6A09E668; // keeps it odd
+    }
+    checkState(false, "No perfect hash for the static table");
+  }
+  
+  private void add(String name, ValueSupplier<?> value) {
+    HeaderName key = HeaderName.of(name);
+    names[key.id()] = super.push(key, value);
+  }
 
   private void loadDefaults() {
-    super.push("date", NULLVP);
-    super.push(":scheme", StringValueSupplier.create("https"));
-    super.push(":scheme", StringValueSupplier.create("http"));
-    super.push(":scheme", StringValueSupplier.create("ftp"));
-    super.push(":method", StringValueSupplier.create("get"));
-    super.push(":method", StringValueSupplier.create("post"));
-    super.push(":method", StringValueSupplier.create("put"));
-    super.push(":method", StringValueSupplier.create("delete"));
-    super.push(":method", StringValueSupplier.create("options"));
-    super.push(":method", StringValueSupplier.create("patch"));
-    super.push(":method", StringValueSupplier.create("connect"));
-    super.push(":path", StringValueSupplier.create("/"));
-    super.push(":host", NULLVP);
-    super.push("cookie", NULLVP);
+    Arrays.fill(names, (byte)-1);
+    add("date", NULLVP);
+    add(":scheme", StringValueSupplier.create("https"));
+    add(":scheme", StringValueSupplier.create("http"));
+    add(":scheme", StringValueSupplier.create("ftp"));
+    add(":method", StringValueSupplier.create("get"));
+    add(":method", StringValueSupplier.create("post"));
+    add(":method", StringValueSupplier.create("put"));
+    add(":method", StringValueSupplier.create("delete"));
+    add(":method", StringValueSupplier.create("options"));
+    add(":method", StringValueSupplier.create("patch"));
+    add(":method", StringValueSupplier.create("connect"));
+    add(":path", StringValueSupplier.create("/"));
+    add(":host", NULLVP);
+    add("cookie", NULLVP);
     int[] codes = 
       new int[] {
         100, 101, 102, 200, 201, 202, 203,
@@ -47,9 +123,9 @@ class StaticStorage
         501, 502, 503, 504, 505
       };
     for (int c : codes)
-      super.push(":status", NumberValueSupplier.create(c));
-    super.push(":status-text", StringValueSupplier.create("OK"));
-    super.push(":version", StringValueSupplier.create("1.1"));    
+      add(":status", NumberValueSupplier.create(c));
+    add(":status-text", StringValueSupplier.create("OK"));
+    add(":version", StringValueSupplier.create("1.1"));    
     String[] nulls = new String[] {
         "accept",
         "accept-charset",
@@ -111,7 +187,7 @@ class StaticStorage
         
     };
     for (String n : nulls)
-      super.push(n, NULLVP);
+      add(n, NULLVP);
   }
 
   /**
@@ -119,7 +195,7 @@ class StaticStorage
    * have no default value defined. This would be guaranteed not to
    * match any provided value...
    */
-  private static ValueSupplier<Void> NULLVP = 
+  private static final ValueSupplier<Void> NULLVP = 
     new ValueSupplier<Void>((byte)0x0) {
     public void writeTo(
       OutputStream buffer) 
@@ -137,4 +213,10 @@ class StaticStorage
     }    
   };
 
+  /**
+   * Declared after NULLVP, which loading the defaults needs
+   */
+  static final StaticStorage INSTANCE = 
+    new StaticStorage();
+
 }
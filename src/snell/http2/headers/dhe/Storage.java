@@ -5,23 +5,33 @@ import static com.google.common.base.Preconditions.checkArgument;
 
 import com.google.common.base.Objects;
 
+import snell.http2.headers.HeaderName;
 import snell.http2.headers.ValueSupplier;
-import snell.http2.utils.IntMap;
 
 public class Storage {
 
   private static final int RACK_SIZE = 128;
+  private static final int INDEX_MASK = RACK_SIZE * 2 - 1;
   
   private final Storage static_store;  
   private final Item[] rack = 
     new Item[RACK_SIZE];
-  private final IntMap idx = 
-    new IntMap(128);
-  private final IntMap nidx =
-    new IntMap(128);
+  
+  /**
+   * Open addressed indexes into the rack, by name and value and by
+   * name alone (the newest entry with it). Each holds slot + 1, 0 
+   * marking an empty bucket. Probes compare the full key against 
+   * the rack, so colliding hashes never resolve to the wrong entry,
+   * and they are at most half full.
+   */
+  private final int[] items = 
+    new int[INDEX_MASK + 1];
+  private final int[] names = 
+    new int[INDEX_MASK + 1];
   private int head = 0, tail = 0, count = 0;
   private int length = 0;
-  private final int maxlength;
+  private int maxlength;
+  private int maxcount = RACK_SIZE;
   
   private transient int stats_store_count = 0;
   private transient int stats_pop_count = 0;
@@ -35,7 +45,7 @@ public class Storage {
   }
   
   public Storage(int maxlength) {
-    this(maxlength, new StaticStorage());
+    this(maxlength, StaticStorage.INSTANCE);
   }
   
   protected Storage(
@@ -46,23 +56,59 @@ public class Storage {
       this.static_store = static_storage;
   }
   
+  /**
+   * The most entries any table can hold, as indexes are 7 bits
+   */
+  public static final int MAX_ENTRIES = RACK_SIZE;
+  
+  /**
+   * Changes the limits, evicting the oldest entries until the table
+   * fits. Both ends of a connection have to resize at the same
+   * point in the stream of header blocks.
+   */
+  public void resize(
+    int maxlength, 
+    int maxcount) {
+      checkArgument(maxlength >= 0);
+      checkArgument(maxcount >= 0 && maxcount <= RACK_SIZE);
+      this.maxlength = maxlength;
+      this.maxcount = maxcount;
+      while (count > maxcount || length > maxlength)
+        pop();
+  }
+  
+  public int maxLength() {
+    return maxlength;
+  }
+  
+  public int maxCount() {
+    return maxcount;
+  }
+  
+  /**
+   * Stores the pair, evicting the oldest entries to make room, and 
+   * returns its slot. A pair that can't fit even in an empty table
+   * empties it and isn't stored; that returns -1.
+   */
   public byte push(
-    String name, 
+    HeaderName name, 
     ValueSupplier<?> value) {
       stats_store_count++;
       checkNotNull(name);
       checkNotNull(value);
       Item item = 
         new Item(name, value);
-      int ihc = item.hashCode();
-      if (idx.contains(ihc)) {
-        return (byte)idx.get(ihc);
+      int i = findItem(item);
+      if (i >= 0) {
+        return (byte)(items[i] - 1);
+      } else if (!reserve(item)) {
+        return -1;
       } else {
-        reserve(item);
         int seq = head++;
         rack[seq] = item;
-        idx.put(item.hashCode(), seq);
-        nidx.put(item.nameHashCode(), seq);
+        items[~findItem(item)] = seq + 1;
+        i = findName(name);
+        names[i >= 0 ? i : ~i] = seq + 1;
         count++;
         length += item.length();
         if (head == RACK_SIZE)
@@ -71,47 +117,104 @@ public class Storage {
       }
   }
   
-  public byte indexOfName(String name) {
+  /**
+   * lookup() results carry the index in the low byte, with 0x80 set
+   * for the static table, and one of these flags. A miss is 0.
+   */
+  public static final int MATCH = 0x100;
+  public static final int NAME_MATCH = 0x200;
+  
+  /**
+   * Finds the best entry for the pair in one go, without throwing on
+   * a miss: the pair itself, dynamic table first, else the newest
+   * entry with the name, else 0
+   */
+  public int lookup(
+    HeaderName name, 
+    ValueSupplier<?> value) {
+      checkNotNull(name);
+      checkNotNull(value);
+      Item item = new Item(name, value);
+      int nix = itemIndex(item);
+      if (nix >= 0)
+        return MATCH | nix;
+      if (static_store != null && 
+          (nix = static_store.itemIndex(item)) >= 0)
+        return MATCH | 0x80 | nix;
+      nix = nameIndex(name);
+      if (nix >= 0)
+        return NAME_MATCH | nix;
+      if (static_store != null && 
+          (nix = static_store.nameIndex(name)) >= 0)
+        return NAME_MATCH | 0x80 | nix;
+      return 0;
+  }
+  
+  /**
+   * Like lookup(), for the name alone. Throws on a miss.
+   */
+  public byte indexOfName(HeaderName name) {
     checkNotNull(name);
-    name = name.toLowerCase();
-    byte nix = (byte)nidx.get(name.hashCode(),-1);
-    if (nix != -1)
-      return nix;
+    int nix = nameIndex(name);
+    if (nix >= 0)
+      return (byte)nix;
     nix = static_store != null ?
-      static_store.indexOfName(name) : -1;
+      static_store.nameIndex(name) : -1;
     if (nix == -1)
       throw new RuntimeException();
     return (byte)(nix | 0x80);
   }
   
+  /**
+   * The index of the exact pair. Throws on a miss.
+   */
   public byte indexOf(
-    String name, 
+    HeaderName name, 
     ValueSupplier<?> value) {
-      Item item = new Item(name,value);
-      byte nix = (byte)idx.get(item.hashCode(), -1);
-      if (nix != -1)
-        return nix;
-      nix = 
-        static_store != null ? 
-          static_store.indexOf(name, value) : 
-            -1;
-      if (nix == -1)
+      int r = lookup(name, value);
+      if ((r & MATCH) == 0)
         throw new RuntimeException();
-      return (byte)(nix | 0x80);
+      return (byte)r;
+  }
+  
+  /**
+   * The slot of the pair in this table alone, or -1
+   */
+  int itemIndex(Item item) {
+    int i = findItem(item);
+    return i >= 0 ? items[i] - 1 : -1;
+  }
+  
+  /**
+   * The slot of the newest entry with the name in this table 
+   * alone, or -1
+   */
+  int nameIndex(HeaderName name) {
+    int i = findName(name);
+    return i >= 0 ? names[i] - 1 : -1;
   }
   
-  private void reserve(Item item) {
-    if (size() + 1 > RACK_SIZE)
+  private boolean reserve(Item item) {
+    if (maxcount == 0 || item.length() > maxlength) {
+      while (count > 0)
+        pop();
+      return false;
+    }
+    if (size() + 1 > maxcount)
       pop();
     while(length + item.length() > maxlength)
       pop();
+    return true;
   }
   
   private void pop() {
     stats_pop_count++;
     Item item = rack[tail];
     if (item != null) {
-      idx.delete(item.hashCode());
+      remove(items, findItem(item));
+      int i = findName(item.name());
+      if (names[i] == tail + 1)
+        remove(names, i);
       length -= item.length();
     }
     rack[tail++] = null;
@@ -120,6 +223,63 @@ public class Storage {
       tail = 0;
   }
   
+  private static int spread(int hash) {
+    int h = hash * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+  
+  /**
+   * The bucket holding an equal item, or ~ the empty bucket 
+   * where it would go
+   */
+  private int findItem(Item item) {
+    int hash = item.hashCode();
+    for (int i = spread(hash) & INDEX_MASK;; i = (i + 1) & INDEX_MASK) {
+      int s = items[i];
+      if (s == 0)
+        return ~i;
+      Item other = rack[s - 1];
+      if (other.hashCode() == hash && other.equals(item))
+        return i;
+    }
+  }
+  
+  private int findName(HeaderName name) {
+    for (int i = spread(name.hashCode()) & INDEX_MASK;; i = (i + 1) & INDEX_MASK) {
+      int s = names[i];
+      if (s == 0)
+        return ~i;
+      if (rack[s - 1].name().equals(name))
+        return i;
+    }
+  }
+  
+  /**
+   * Empties bucket i, shifting back any entries that probed past 
+   * it so lookups never need tombstones
+   */
+  private void remove(int[] index, int i) {
+    int gap = i;
+    int j = i;
+    while (true) {
+      j = (j + 1) & INDEX_MASK;
+      if (index[j] == 0)
+        break;
+      Item item = rack[index[j] - 1];
+      int home = spread(
+        index == items ? 
+          item.hashCode() : 
+          item.nameHashCode()) & INDEX_MASK;
+      // move j into the gap unless its home lies cyclically
+      // in (gap, j]
+      if (gap <= j ? (home <= gap || home > j) : (home <= gap && home > j)) {
+        index[gap] = index[j];
+        gap = j;
+      }
+    }
+    index[gap] = 0;
+  }
+  
   public int size() {
     return count;
   }
@@ -128,7 +288,7 @@ public class Storage {
     return length;
   }
   
-  public String nameOf(byte idx) {
+  public HeaderName nameOf(byte idx) {
     if (idx < 0) {
       idx = (byte)(idx & ~0x80);
       return static_store != null ?
@@ -141,6 +301,10 @@ public class Storage {
     }
   }
   
+  final Item item(int slot) {
+    return rack[slot];
+  }
+  
   public <V>ValueSupplier<V> valueOf(byte idx) {
     if (idx < 0) {
       idx = (byte)(idx & ~0x80);
@@ -155,7 +319,7 @@ public class Storage {
   }
   
   final static class Item {
-    private final String name;
+    private final HeaderName name;
     private final ValueSupplier<?> value;
     private transient final int len;
     private transient int hash = 1;
@@ -163,21 +327,25 @@ public class Storage {
     private transient int valHash = 1;
     
     Item(
-      String name,
+      HeaderName name,
       ValueSupplier<?> value) {
       checkNotNull(name);
       checkNotNull(value);
-      this.name = name.toLowerCase();
+      this.name = name;
       this.value = value;
-      this.len = value != null ? value.length() : 0;
+      this.len = name.length() + value.length();
       hashCode();
     }
     
+    /**
+     * The name and value bytes counted against the table's limit,
+     * the same at both ends
+     */
     int length() {
       return len;
     }
     
-    String name() {
+    HeaderName name() {
       return name;
     }
     
@@ -0,0 +1,136 @@
+package snell.http2.session;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.base.Throwables;
+
+/**
+ * A single thread driving one Selector. Every channel registered
+ * with the loop is serviced by that thread only, so sessions need
+ * no locking of their own. Work from other threads is handed over
+ * with execute(), which wakes the selector.
+ */
+public final class EventLoop
+  implements Executor {
+
+  private static final Log log =
+    LogFactory.getLog(EventLoop.class);
+
+  private final Selector selector;
+  private final Thread thread;
+  private final Queue<Runnable> tasks =
+    new ConcurrentLinkedQueue<Runnable>();
+  private volatile boolean running = true;
+
+  EventLoop(String name) {
+    try {
+      this.selector = Selector.open();
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+    this.thread = new Thread(
+      new Runnable() {
+        public void run() {
+          loop();
+        }
+      }, name);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  public boolean inEventLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  public void execute(Runnable task) {
+    checkNotNull(task);
+    tasks.add(task);
+    if (!inEventLoop())
+      selector.wakeup();
+  }
+
+  /**
+   * Registers the channel, which must be non-blocking. Must be
+   * called on the loop's thread.
+   */
+  SelectionKey register(
+    SelectableChannel channel,
+    int ops,
+    Selectable handler)
+      throws IOException {
+    checkState(inEventLoop());
+    return channel.register(selector, ops, handler);
+  }
+
+  /**
+   * Stops the loop and closes everything registered with it
+   */
+  public void shutdown() {
+    running = false;
+    selector.wakeup();
+  }
+
+  public void awaitTermination()
+    throws InterruptedException {
+    thread.join();
+  }
+
+  private void loop() {
+    while (running) {
+      try {
+        selector.select();
+        Iterator<SelectionKey> i =
+          selector.selectedKeys().iterator();
+        while (i.hasNext()) {
+          SelectionKey key = i.next();
+          i.remove();
+          Selectable handler =
+            (Selectable)key.attachment();
+          try {
+            if (key.isValid())
+              handler.ready(key);
+          } catch (Throwable t) {
+            log.warn("Closing channel after error", t);
+            handler.close();
+          }
+        }
+        runTasks();
+      } catch (Throwable t) {
+        log.error("Event loop error", t);
+      }
+    }
+    runTasks();
+    for (SelectionKey key : selector.keys())
+      ((Selectable)key.attachment()).close();
+    try {
+      selector.close();
+    } catch (IOException e) {}
+  }
+
+  private void runTasks() {
+    Runnable task = null;
+    while ((task = tasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (Throwable t) {
+        log.warn("Task failed", t);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,76 @@
+package snell.http2.session;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Supplier;
+
+/**
+ * A fixed set of event loops, by default one per core. New
+ * connections are spread across them round-robin.
+ */
+public final class EventLoopGroup {
+
+  public static EventLoopGroupBuilder make() {
+    return new EventLoopGroupBuilder();
+  }
+
+  public static final class EventLoopGroupBuilder
+    implements Supplier<EventLoopGroup> {
+
+    private int threads =
+      Runtime.getRuntime().availableProcessors();
+    private String name = "http2-event-loop";
+
+    EventLoopGroupBuilder() {}
+
+    public EventLoopGroupBuilder threads(int threads) {
+      checkArgument(threads > 0);
+      this.threads = threads;
+      return this;
+    }
+
+    public EventLoopGroupBuilder name(String name) {
+      this.name = name;
+      return this;
+    }
+
+    public EventLoopGroup get() {
+      return new EventLoopGroup(this);
+    }
+  }
+
+  private final EventLoop[] loops;
+  private final AtomicInteger next =
+    new AtomicInteger();
+
+  protected EventLoopGroup(
+    EventLoopGroupBuilder builder) {
+    this.loops = new EventLoop[builder.threads];
+    for (int n = 0; n < loops.length; n++) {
+      loops[n] = new EventLoop(builder.name + "-" + n);
+      loops[n].start();
+    }
+  }
+
+  public EventLoop next() {
+    return loops[(next.getAndIncrement() & 0x7FFFFFFF) % loops.length];
+  }
+
+  public int size() {
+    return loops.length;
+  }
+
+  public void shutdown() {
+    for (EventLoop loop : loops)
+      loop.shutdown();
+  }
+
+  public void awaitTermination()
+    throws InterruptedException {
+    for (EventLoop loop : loops)
+      loop.awaitTermination();
+  }
+
+}
@@ -0,0 +1,18 @@
+package snell.http2.session;
+
+import java.io.IOException;
+
+/**
+ * The peer broke flow control for the whole connection, which the 
+ * session answers with GOAWAY(FLOW_CONTROL_ERROR)
+ */
+public final class FlowControlException 
+  extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  public FlowControlException(String message) {
+    super(message);
+  }
+
+}
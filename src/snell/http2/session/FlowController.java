@@ -0,0 +1,487 @@
+package snell.http2.session;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static java.lang.Math.min;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import snell.http2.frames.DataFrame;
+import snell.http2.frames.SettingsFrame;
+import snell.http2.frames.SettingsFrame.Settings;
+import snell.http2.frames.WindowUpdateFrame;
+import snell.http2.utils.IntObjectMap;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Tracks the connection and per-stream flow control windows for
+ * both directions of a single connection.
+ *
+ * Outbound, send() hands back the DATA frame (or as much of it as
+ * currently fits) and defers the rest until the peer opens the
+ * window again; deferred frames are picked up with poll() after a
+ * WINDOW_UPDATE. Threads that would rather block can use acquire().
+ *
+ * Inbound, received() charges DATA against the windows we have
+ * advertised and consumed() credits them back once the application
+ * has read the data. Credit is batched until it reaches the update
+ * threshold, then pollUpdate() returns the WINDOW_UPDATE to send.
+ *
+ * Either side of a stream (or the whole connection, stream 0) can
+ * end flow control with FLAG_END_FLOW_CONTROL, after which it is
+ * no longer tracked. Thread-safe.
+ */
+public final class FlowController {
+
+  public static final int DEFAULT_WINDOW_SIZE = 0xFFFF;
+  private static final int MAX_WINDOW_SIZE = 0x7FFFFFFF;
+
+  public static FlowControllerBuilder make() {
+    return new FlowControllerBuilder();
+  }
+
+  public static final class FlowControllerBuilder
+    implements Supplier<FlowController> {
+
+    private int send_window = DEFAULT_WINDOW_SIZE;
+    private int recv_window = DEFAULT_WINDOW_SIZE;
+    private int threshold = -1;
+
+    FlowControllerBuilder() {}
+
+    /**
+     * The peer's initial window, until it says otherwise
+     * in a SETTINGS frame
+     */
+    public FlowControllerBuilder initialSendWindow(int size) {
+      checkArgument(size >= 0);
+      this.send_window = size;
+      return this;
+    }
+
+    /**
+     * The initial window we advertise to the peer. Must match
+     * the INITIAL_WINDOW_SIZE we send in our SETTINGS.
+     */
+    public FlowControllerBuilder initialReceiveWindow(int size) {
+      checkArgument(size > 0);
+      this.recv_window = size;
+      return this;
+    }
+
+    /**
+     * Consumed bytes are credited back to the peer once at least
+     * this many have built up on a stream (or the connection).
+     * Defaults to half the receive window.
+     */
+    public FlowControllerBuilder updateThreshold(int bytes) {
+      checkArgument(bytes > 0);
+      this.threshold = bytes;
+      return this;
+    }
+
+    public FlowController get() {
+      return new FlowController(this);
+    }
+  }
+
+  private static final class Window {
+    final int id;
+    int send;
+    int recv;
+    int unacked;
+    boolean send_unlimited;
+    boolean recv_unlimited;
+    boolean blocked;
+    boolean update_due;
+    boolean closed;
+    ArrayDeque<DataFrame> deferred;
+    Window(int id, int send, int recv, boolean send_unlimited) {
+      this.id = id;
+      this.send = send;
+      this.recv = recv;
+      this.send_unlimited = send_unlimited;
+    }
+    boolean hasDeferred() {
+      return deferred != null && !deferred.isEmpty();
+    }
+  }
+
+  private final Window connection;
+  private final IntObjectMap<Window> streams =
+    new IntObjectMap<Window>();
+  private final ArrayDeque<Window> blocked =
+    new ArrayDeque<Window>();
+  private final ArrayDeque<Window> updates =
+    new ArrayDeque<Window>();
+  private final int initial_recv;
+  private final int threshold;
+  private int initial_send;
+  private boolean send_unlimited = false;
+
+  protected FlowController(
+    FlowControllerBuilder builder) {
+    this.initial_send = builder.send_window;
+    this.initial_recv = builder.recv_window;
+    this.threshold = builder.threshold > 0 ?
+      builder.threshold :
+      Math.max(1, initial_recv / 2);
+    this.connection =
+      new Window(0, initial_send, initial_recv, false);
+  }
+
+  /**
+   * Starts tracking a stream. Streams are also opened implicitly
+   * on first use, but WINDOW_UPDATEs for streams that have not
+   * been opened are ignored.
+   */
+  public synchronized FlowController open(int stream_id) {
+    state(stream_id);
+    return this;
+  }
+
+  /**
+   * Stops tracking the stream and releases any frames that were
+   * still waiting for window
+   */
+  public synchronized FlowController close(int stream_id) {
+    Window w = streams.remove(stream_id);
+    if (w != null) {
+      w.closed = true;
+      if (w.deferred != null) {
+        for (DataFrame frame : w.deferred)
+          frame.release();
+        w.deferred.clear();
+      }
+      notifyAll();
+    }
+    return this;
+  }
+
+  public synchronized boolean isOpen(int stream_id) {
+    return streams.contains(stream_id);
+  }
+
+  public synchronized int streams() {
+    return streams.size();
+  }
+
+  private Window state(int stream_id) {
+    checkArgument(stream_id > 0);
+    Window w = streams.get(stream_id);
+    if (w == null) {
+      w = new Window(
+        stream_id,
+        initial_send,
+        initial_recv,
+        send_unlimited);
+      streams.put(stream_id, w);
+    }
+    return w;
+  }
+
+  /* Outbound */
+
+  /**
+   * Bytes that may be sent on the connection right now
+   */
+  public synchronized int sendWindow() {
+    return connection.send_unlimited ? 
+      MAX_WINDOW_SIZE : 
+      connection.send;
+  }
+
+  /**
+   * Bytes that may be sent on the stream right now
+   */
+  public synchronized int sendWindow(int stream_id) {
+    return available(state(stream_id));
+  }
+
+  private int available(Window w) {
+    return min(
+      connection.send_unlimited ? MAX_WINDOW_SIZE : connection.send,
+      w.send_unlimited ? MAX_WINDOW_SIZE : w.send);
+  }
+
+  private void consume(Window w, int n) {
+    if (!connection.send_unlimited)
+      connection.send -= n;
+    if (!w.send_unlimited)
+      w.send -= n;
+  }
+
+  /**
+   * Returns the frame, or the leading part of it, if it may be
+   * sent now. Whatever doesn't fit the windows is deferred, as is
+   * everything sent on a stream that already has frames waiting.
+   * Returns null if nothing may be sent yet. The controller takes
+   * ownership of deferred frames.
+   */
+  public synchronized DataFrame send(DataFrame frame) {
+    checkNotNull(frame);
+    Window w = state(frame.id());
+    if (w.hasDeferred()) {
+      w.deferred.addLast(frame);
+      return null;
+    }
+    return take(w, frame);
+  }
+
+  /**
+   * Charges the windows for a frame already cut to fit them, as 
+   * the FrameScheduler does. Unlike send(), never defers the frame,
+   * even behind frames waiting on the stream.
+   */
+  public synchronized void charge(DataFrame frame) {
+    checkNotNull(frame);
+    Window w = state(frame.id());
+    int n = frame.size();
+    checkState(n == 0 || n <= available(w));
+    consume(w, n);
+  }
+
+  /**
+   * Charges as much of the frame as fits and puts the remainder
+   * back at the head of the stream's queue
+   */
+  private DataFrame take(Window w, DataFrame frame) {
+    int n = frame.size();
+    int avail = available(w);
+    if (n <= avail) {
+      consume(w, n);
+      return frame;
+    }
+    if (avail <= 0) {
+      defer(w, frame);
+      return null;
+    }
+    DataFrame[] parts = frame.split(avail);
+    frame.release();
+    consume(w, avail);
+    defer(w, parts[1]);
+    return parts[0];
+  }
+
+  private void defer(Window w, DataFrame frame) {
+    if (w.deferred == null)
+      w.deferred = new ArrayDeque<DataFrame>();
+    w.deferred.addFirst(frame);
+    if (!w.blocked) {
+      w.blocked = true;
+      blocked.addLast(w);
+    }
+  }
+
+  /**
+   * Returns the next deferred frame, or part of one, that the
+   * windows now allow, or null if there is none. Streams are
+   * served round-robin.
+   */
+  public synchronized DataFrame poll() {
+    int c = blocked.size();
+    while (c-- > 0) {
+      Window w = blocked.pollFirst();
+      if (w.closed || !w.hasDeferred()) {
+        w.blocked = false;
+        continue;
+      }
+      if (available(w) <= 0 && w.deferred.peekFirst().size() > 0) {
+        blocked.addLast(w);
+        continue;
+      }
+      DataFrame frame = take(w, w.deferred.pollFirst());
+      if (w.hasDeferred())
+        blocked.addLast(w);
+      else
+        w.blocked = false;
+      return frame;
+    }
+    return null;
+  }
+
+  /**
+   * True if frames are waiting for window
+   */
+  public synchronized boolean hasDeferred() {
+    return !blocked.isEmpty();
+  }
+
+  /**
+   * Blocks until at least one byte may be sent on the stream,
+   * then claims up to max bytes of window and returns the number
+   * claimed. Returns -1 if the stream is closed while waiting.
+   * Shouldn't be mixed with send() on the same stream.
+   */
+  public synchronized int acquire(
+    int stream_id,
+    int max)
+      throws InterruptedException {
+    checkArgument(max > 0);
+    Window w = state(stream_id);
+    while (true) {
+      if (w.closed)
+        return -1;
+      int avail = available(w);
+      if (avail > 0) {
+        int n = min(avail, max);
+        consume(w, n);
+        return n;
+      }
+      wait();
+    }
+  }
+
+  /**
+   * Applies a WINDOW_UPDATE from the peer. Returns true if
+   * deferred frames may now be sendable.
+   */
+  public synchronized boolean onWindowUpdate(
+    WindowUpdateFrame frame)
+      throws IOException {
+    checkNotNull(frame);
+    Window w = frame.id() == 0 ?
+      connection :
+      streams.get(frame.id());
+    if (w == null)
+      return false;
+    if (frame.endFlowControl()) {
+      w.send_unlimited = true;
+    } else if (!w.send_unlimited) {
+      if ((long)w.send + frame.value() > MAX_WINDOW_SIZE)
+        throw new FlowControlException("Window overflow");
+      w.send += frame.value();
+    }
+    notifyAll();
+    return !blocked.isEmpty();
+  }
+
+  /**
+   * Applies the peer's INITIAL_WINDOW_SIZE and FLOW_CONTROL_OPTIONS.
+   * Throws, leaving the windows as they were, if the new initial 
+   * size would take a stream's window past the maximum.
+   */
+  public synchronized void onSettings(
+    SettingsFrame frame)
+      throws IOException {
+    checkNotNull(frame);
+    int fco = frame.getValue(Settings.FLOW_CONTROL_OPTIONS);
+    if (fco > 0 && (fco & 0x1) == 0x1) {
+      send_unlimited = true;
+      connection.send_unlimited = true;
+      for (Window w : streams)
+        w.send_unlimited = true;
+    }
+    int iws = frame.getValue(Settings.INITIAL_WINDOW_SIZE);
+    if (iws >= 0) {
+      int delta = iws - initial_send;
+      for (Window w : streams)
+        if (!w.send_unlimited && 
+            (long)w.send + delta > MAX_WINDOW_SIZE)
+          throw new FlowControlException("Window overflow");
+      initial_send = iws;
+      for (Window w : streams)
+        w.send += delta;
+    }
+    notifyAll();
+  }
+
+  /* Inbound */
+
+  /**
+   * Charges a received DATA frame against the windows. Returns
+   * false if the frame overran the stream's window (the stream
+   * should be reset with FLOW_CONTROL_ERROR). Throws if it overran
+   * the connection window.
+   */
+  public synchronized boolean received(
+    DataFrame frame)
+      throws IOException {
+    checkNotNull(frame);
+    int n = frame.size();
+    if (!connection.recv_unlimited) {
+      if (n > connection.recv)
+        throw new FlowControlException("Connection window overrun");
+      connection.recv -= n;
+    }
+    Window w = state(frame.id());
+    if (!w.recv_unlimited) {
+      if (n > w.recv) {
+        credit(connection, n);
+        return false;
+      }
+      w.recv -= n;
+    }
+    return true;
+  }
+
+  /**
+   * Credits back bytes the application has consumed from the
+   * stream. Returns true if a WINDOW_UPDATE is now due.
+   */
+  public synchronized boolean consumed(
+    int stream_id,
+    int bytes) {
+    checkArgument(bytes >= 0);
+    boolean due = credit(connection, bytes);
+    Window w = streams.get(stream_id);
+    if (w != null)
+      due |= credit(w, bytes);
+    return due;
+  }
+
+  private boolean credit(Window w, int n) {
+    if (w.recv_unlimited || n == 0)
+      return false;
+    w.unacked += n;
+    if (w.unacked >= threshold && !w.update_due) {
+      w.update_due = true;
+      updates.addLast(w);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the next WINDOW_UPDATE to send, or null if none is
+   * due. Each covers all the credit built up on its stream.
+   */
+  public synchronized WindowUpdateFrame pollUpdate() {
+    Window w = null;
+    while ((w = updates.pollFirst()) != null) {
+      w.update_due = false;
+      if (w.closed || w.recv_unlimited || w.unacked == 0)
+        continue;
+      int n = w.unacked;
+      w.unacked = 0;
+      w.recv += n;
+      return WindowUpdateFrame.make()
+        .streamId(w.id)
+        .value(n)
+        .get();
+    }
+    return null;
+  }
+
+  /**
+   * Stops flow controlling what the peer sends on the stream, or
+   * on the whole connection for stream 0. Returns the frame that
+   * tells the peer.
+   */
+  public synchronized WindowUpdateFrame endFlowControl(
+    int stream_id) {
+    Window w = stream_id == 0 ?
+      connection :
+      state(stream_id);
+    w.recv_unlimited = true;
+    w.unacked = 0;
+    return WindowUpdateFrame.make()
+      .streamId(stream_id)
+      .endFlowControl()
+      .get();
+  }
+
+}
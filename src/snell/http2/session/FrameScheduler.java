@@ -0,0 +1,359 @@
+package snell.http2.session;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Iterators.singletonIterator;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import snell.http2.frames.DataFrame;
+import snell.http2.frames.Frame;
+import snell.http2.frames.FrameWriter;
+import snell.http2.frames.HeadersFrame;
+import snell.http2.utils.IntObjectMap;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Decides which frame goes out next on a connection. Control
+ * frames (SETTINGS, WINDOW_UPDATE, etc) are sent first, in the 
+ * order they were queued, as is a stream's HEADERS when nothing 
+ * is queued on the stream ahead of it. Otherwise HEADERS, e.g. 
+ * trailers, wait behind the stream's DATA. DATA frames from 
+ * concurrent streams are interleaved by start-time fair queuing:
+ * each stream gets bandwidth in proportion to a weight derived 
+ * from its priority, and sends at most one quantum before the 
+ * next stream gets a turn, so a large low-priority download can't
+ * hold up a small high-priority response. Picking the next stream is O(log n) in
+ * the number of streams with data waiting.
+ *
+ * Stream bodies can be queued frame by frame or as the iterators
+ * returned by DataFrame.produce(), which are only pulled from as
+ * the stream is scheduled. With a FlowController, streams without
+ * send window are set aside until windowUpdated() is called.
+ * Thread-safe.
+ */
+public final class FrameScheduler {
+
+  public static final int DEFAULT_PRIORITY = 1 << 30;
+  public static final int DEFAULT_QUANTUM = 0x4000;
+  private static final int MAX_WEIGHT = 256;
+
+  public static FrameSchedulerBuilder make() {
+    return new FrameSchedulerBuilder();
+  }
+
+  public static final class FrameSchedulerBuilder
+    implements Supplier<FrameScheduler> {
+
+    private int quantum = DEFAULT_QUANTUM;
+    private FlowController flow;
+
+    FrameSchedulerBuilder() {}
+
+    /**
+     * Most bytes of DATA a stream sends per turn. Larger frames
+     * are split.
+     */
+    public FrameSchedulerBuilder quantum(int bytes) {
+      checkArgument(bytes > 0);
+      this.quantum = bytes;
+      return this;
+    }
+
+    public FrameSchedulerBuilder flowControl(FlowController flow) {
+      this.flow = checkNotNull(flow);
+      return this;
+    }
+
+    public FrameScheduler get() {
+      return new FrameScheduler(this);
+    }
+  }
+
+  /**
+   * Maps the 31-bit priority (0 highest) onto a weight between
+   * 256 and 1, halving with each additional bit: 0 gets 256,
+   * 1 gets 128, 2-3 get 64 and so on down to 1 for 128 and up.
+   */
+  static int weight(int priority) {
+    int bits = 32 - Integer.numberOfLeadingZeros(priority);
+    return max(1, MAX_WEIGHT >>> bits);
+  }
+
+  private static final class Stream {
+    final int id;
+    int weight;
+    long tag;
+    long seq;
+    boolean active;
+    boolean parked;
+    final ArrayDeque<Frame<?>> frames =
+      new ArrayDeque<Frame<?>>();
+    final ArrayDeque<Iterator<? extends Frame<?>>> sources =
+      new ArrayDeque<Iterator<? extends Frame<?>>>();
+    Stream(int id, int weight) {
+      this.id = id;
+      this.weight = weight;
+    }
+    /**
+     * Head frame, pulling from the sources if needed
+     */
+    Frame<?> peek() {
+      while (frames.isEmpty() && !sources.isEmpty()) {
+        Iterator<? extends Frame<?>> source = sources.peekFirst();
+        if (source.hasNext())
+          frames.addLast(source.next());
+        else
+          sources.pollFirst();
+      }
+      return frames.peekFirst();
+    }
+  }
+
+  private static final Comparator<Stream> ORDER =
+    new Comparator<Stream>() {
+      public int compare(Stream a, Stream b) {
+        if (a.tag != b.tag)
+          return a.tag < b.tag ? -1 : 1;
+        return a.seq < b.seq ? -1 : a.seq > b.seq ? 1 : 0;
+      }
+  };
+
+  private final int quantum;
+  private final FlowController flow;
+  private final ArrayDeque<Frame<?>> control =
+    new ArrayDeque<Frame<?>>();
+  private final IntObjectMap<Stream> streams =
+    new IntObjectMap<Stream>();
+  private final PriorityQueue<Stream> ready =
+    new PriorityQueue<Stream>(16, ORDER);
+  private final List<Stream> parked =
+    new ArrayList<Stream>();
+  private long vtime = 0;
+  private long seq = 0;
+
+  protected FrameScheduler(
+    FrameSchedulerBuilder builder) {
+    this.quantum = builder.quantum;
+    this.flow = builder.flow;
+  }
+
+  /**
+   * Sets the stream's priority, opening it if necessary. A new
+   * priority takes effect from the stream's next turn.
+   */
+  public synchronized FrameScheduler open(
+    int stream_id,
+    int priority) {
+    checkArgument(stream_id > 0);
+    checkArgument(priority >= 0);
+    stream(stream_id).weight = weight(priority);
+    return this;
+  }
+
+  private Stream stream(int stream_id) {
+    Stream s = streams.get(stream_id);
+    if (s == null) {
+      s = new Stream(stream_id, weight(DEFAULT_PRIORITY));
+      streams.put(stream_id, s);
+    }
+    return s;
+  }
+
+  /**
+   * Queues a frame that isn't subject to prioritization. DATA
+   * frames are routed to their stream instead.
+   */
+  public synchronized FrameScheduler control(
+    Frame<?> frame) {
+    checkNotNull(frame);
+    if (frame instanceof DataFrame)
+      return data((DataFrame)frame);
+    control.addLast(frame);
+    return this;
+  }
+
+  /**
+   * Queues a HEADERS frame and takes the stream's priority
+   * from it when it carries one. The frame goes out with the
+   * control frames if nothing is queued on the stream, otherwise
+   * after everything that is.
+   */
+  public synchronized FrameScheduler headers(
+    HeadersFrame frame) {
+    checkNotNull(frame);
+    Stream s = stream(frame.id());
+    if (frame.hasPriority())
+      s.weight = weight(frame.priority());
+    if (s.peek() == null)
+      control.addLast(frame);
+    else
+      queue(s, frame);
+    return this;
+  }
+
+  public synchronized FrameScheduler data(
+    DataFrame frame) {
+    checkNotNull(frame);
+    queue(stream(frame.id()), frame);
+    return this;
+  }
+  
+  private void queue(
+    Stream s, 
+    Frame<?> frame) {
+    if (s.sources.isEmpty())
+      s.frames.addLast(frame);
+    else
+      s.sources.addLast(singletonIterator(frame));
+    activate(s);
+  }
+
+  /**
+   * Queues a stream body, e.g. from DataFrame.produce(). Frames
+   * are pulled from the iterator only as the stream is scheduled.
+   */
+  public synchronized FrameScheduler data(
+    int stream_id,
+    Iterable<DataFrame> frames) {
+    checkNotNull(frames);
+    checkArgument(stream_id > 0);
+    Stream s = stream(stream_id);
+    s.sources.addLast(frames.iterator());
+    activate(s);
+    return this;
+  }
+
+  private void activate(Stream s) {
+    if (s.active || s.parked)
+      return;
+    s.active = true;
+    s.tag = max(s.tag, vtime);
+    s.seq = seq++;
+    ready.add(s);
+  }
+
+  /**
+   * Returns the next frame to write, or null if there is nothing
+   * that can be sent right now
+   */
+  public synchronized Frame<?> next() {
+    Frame<?> frame = control.pollFirst();
+    if (frame != null)
+      return frame;
+    while (!ready.isEmpty()) {
+      Stream s = ready.peek();
+      Frame<?> next = s.peek();
+      if (next instanceof DataFrame && 
+          flow != null && 
+          flow.sendWindow() <= 0)
+        return null;
+      ready.poll();
+      s.active = false;
+      if (next == null)
+        continue;
+      if (!(next instanceof DataFrame)) {
+        // HEADERS queued behind the stream's DATA, no window needed
+        s.frames.pollFirst();
+        if (s.peek() != null)
+          activate(s);
+        return next;
+      }
+      DataFrame head = (DataFrame)next;
+      int limit = quantum;
+      if (flow != null && head.size() > 0) {
+        int avail = flow.sendWindow(s.id);
+        if (avail <= 0) {
+          s.parked = true;
+          parked.add(s);
+          continue;
+        }
+        limit = min(limit, avail);
+      }
+      s.frames.pollFirst();
+      if (head.size() > limit) {
+        DataFrame[] parts = head.split(limit);
+        head.release();
+        head = parts[0];
+        s.frames.addFirst(parts[1]);
+      }
+      if (flow != null)
+        flow.charge(head);
+      vtime = s.tag;
+      s.tag += (long)(head.size() + Frame.HEADER_SIZE) *
+        MAX_WEIGHT / s.weight;
+      if (!s.frames.isEmpty() || !s.sources.isEmpty())
+        activate(s);
+      return head;
+    }
+    return null;
+  }
+
+  /**
+   * Writes every frame that can currently be sent.
+   * Returns the number of frames written.
+   */
+  public int drainTo(
+    FrameWriter writer)
+      throws IOException {
+    checkNotNull(writer);
+    int c = 0;
+    Frame<?> frame = null;
+    while ((frame = next()) != null) {
+      writer.write(frame);
+      c++;
+    }
+    return c;
+  }
+
+  /**
+   * Call after a WINDOW_UPDATE has been applied to the flow
+   * controller. Stream 0 wakes every stream waiting for window.
+   */
+  public synchronized FrameScheduler windowUpdated(
+    int stream_id) {
+    Iterator<Stream> i = parked.iterator();
+    while (i.hasNext()) {
+      Stream s = i.next();
+      if (stream_id == 0 || s.id == stream_id) {
+        i.remove();
+        s.parked = false;
+        activate(s);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Drops the stream and releases any frames still queued for it
+   */
+  public synchronized FrameScheduler close(
+    int stream_id) {
+    Stream s = streams.remove(stream_id);
+    if (s != null) {
+      if (s.active)
+        ready.remove(s);
+      if (s.parked)
+        parked.remove(s);
+      for (Frame<?> frame : s.frames)
+        frame.release();
+      s.frames.clear();
+      s.sources.clear();
+    }
+    return this;
+  }
+
+  public synchronized boolean isEmpty() {
+    return control.isEmpty() && ready.isEmpty() && parked.isEmpty();
+  }
+
+}
@@ -0,0 +1,217 @@
+package snell.http2.session;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import snell.http2.headers.dhe.Dhe;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Accepts connections and starts a server-side Http2Session for
+ * each, spreading them across the event loop group
+ */
+public final class Http2Server
+  implements Selectable {
+
+  private static final Log log =
+    LogFactory.getLog(Http2Server.class);
+
+  public static Http2ServerBuilder make(
+    SocketAddress address) {
+    return new Http2ServerBuilder(address);
+  }
+
+  public static Http2ServerBuilder make(int port) {
+    return make(new InetSocketAddress(port));
+  }
+
+  public static final class Http2ServerBuilder
+    implements Supplier<Http2Server> {
+
+    private final SocketAddress address;
+    private EventLoopGroup group;
+    private SessionListener listener;
+    private int window = FlowController.DEFAULT_WINDOW_SIZE;
+    private int max_streams =
+      Http2Session.DEFAULT_MAX_CONCURRENT_STREAMS;
+    private int table_size = Dhe.DEFAULT_TABLE_SIZE;
+    private int table_entries = Dhe.DEFAULT_TABLE_ENTRIES;
+    private int backlog = 1024;
+
+    Http2ServerBuilder(SocketAddress address) {
+      this.address = checkNotNull(address);
+    }
+
+    public Http2ServerBuilder group(EventLoopGroup group) {
+      this.group = checkNotNull(group);
+      return this;
+    }
+
+    public Http2ServerBuilder listener(SessionListener listener) {
+      this.listener = checkNotNull(listener);
+      return this;
+    }
+
+    public Http2ServerBuilder initialWindowSize(int size) {
+      checkArgument(size > 0);
+      this.window = size;
+      return this;
+    }
+
+    public Http2ServerBuilder maxConcurrentStreams(int max) {
+      checkArgument(max > 0);
+      this.max_streams = max;
+      return this;
+    }
+
+    /**
+     * Most bytes of header table each peer may have us hold
+     */
+    public Http2ServerBuilder headerTableSize(int size) {
+      checkArgument(size >= 0);
+      this.table_size = size;
+      return this;
+    }
+
+    /**
+     * Most entries in the header table each peer may have us hold
+     */
+    public Http2ServerBuilder headerTableEntries(int entries) {
+      checkArgument(entries >= 0);
+      this.table_entries = entries;
+      return this;
+    }
+
+    public Http2ServerBuilder backlog(int backlog) {
+      checkArgument(backlog > 0);
+      this.backlog = backlog;
+      return this;
+    }
+
+    public Http2Server get() {
+      checkState(group != null);
+      checkState(listener != null);
+      return new Http2Server(this);
+    }
+  }
+
+  private final SocketAddress address;
+  private final EventLoopGroup group;
+  private final SessionListener listener;
+  private final int window;
+  private final int max_streams;
+  private final int table_size;
+  private final int table_entries;
+  private final int backlog;
+  private final EventLoop loop;
+  private ServerSocketChannel server;
+
+  protected Http2Server(
+    Http2ServerBuilder builder) {
+    this.address = builder.address;
+    this.group = builder.group;
+    this.listener = builder.listener;
+    this.window = builder.window;
+    this.max_streams = builder.max_streams;
+    this.table_size = builder.table_size;
+    this.table_entries = builder.table_entries;
+    this.backlog = builder.backlog;
+    this.loop = group.next();
+  }
+
+  /**
+   * Binds the listening socket and starts accepting
+   */
+  public Http2Server start()
+    throws IOException {
+    checkState(server == null);
+    server = ServerSocketChannel.open();
+    server.configureBlocking(false);
+    server.socket().setReuseAddress(true);
+    server.socket().bind(address, backlog);
+    loop.execute(
+      new Runnable() {
+        public void run() {
+          try {
+            loop.register(
+              server,
+              SelectionKey.OP_ACCEPT,
+              Http2Server.this);
+          } catch (IOException e) {
+            log.error("Failed to register server socket", e);
+            close();
+          }
+        }
+    });
+    return this;
+  }
+
+  /**
+   * The bound address, e.g. to find an ephemeral port
+   */
+  public SocketAddress address() {
+    checkState(server != null);
+    return server.socket().getLocalSocketAddress();
+  }
+
+  /**
+   * Accepts whatever connections are pending. A failure affects
+   * only the connection it happened on; the server keeps listening.
+   */
+  public void ready(SelectionKey key) {
+    while (true) {
+      SocketChannel channel = null;
+      try {
+        channel = server.accept();
+      } catch (IOException e) {
+        // e.g. out of file descriptors, try again next time round
+        log.warn("Accept failed", e);
+        return;
+      }
+      if (channel == null)
+        return;
+      try {
+        channel.socket().setTcpNoDelay(true);
+        Http2Session.make(channel)
+          .server()
+          .loop(group.next())
+          .listener(listener)
+          .initialWindowSize(window)
+          .maxConcurrentStreams(max_streams)
+          .headerTableSize(table_size)
+          .headerTableEntries(table_entries)
+          .get()
+          .start();
+      } catch (IOException e) {
+        log.debug("Failed to set up connection", e);
+        try {
+          channel.close();
+        } catch (IOException x) {}
+      }
+    }
+  }
+
+  /**
+   * Stops accepting. Established sessions are unaffected.
+   */
+  public void close() {
+    if (server == null)
+      return;
+    try {
+      server.close();
+    } catch (IOException e) {}
+  }
+
+}
@@ -0,0 +1,780 @@
+package snell.http2.session;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import snell.http2.frames.DataFrame;
+import snell.http2.frames.Frame;
+import snell.http2.frames.FrameDecoder;
+import snell.http2.frames.FrameWriter;
+import snell.http2.frames.GoAwayFrame;
+import snell.http2.frames.HeadersFrame;
+import snell.http2.frames.PingFrame;
+import snell.http2.frames.PushPromiseFrame;
+import snell.http2.frames.RstStreamFrame;
+import snell.http2.frames.SettingsFrame;
+import snell.http2.frames.SettingsFrame.Settings;
+import snell.http2.frames.Status;
+import snell.http2.frames.WindowUpdateFrame;
+import snell.http2.headers.dhe.Dhe;
+import snell.http2.utils.ByteBufferInputStream;
+import snell.http2.utils.IntObjectMap;
+import snell.http2.utils.RangedIntegerSupplier;
+
+import com.google.common.base.Supplier;
+
+/**
+ * One HTTP/2 connection over a non-blocking SocketChannel, driven
+ * by a single EventLoop. The session owns the header encoder and
+ * decoder for the connection, the table of open streams, flow
+ * control and the outbound frame scheduler. SETTINGS, PING and
+ * GOAWAY are handled here; stream frames are dispatched to each
+ * stream's StreamHandler.
+ *
+ * Everything happens on the event loop thread. Other threads hand
+ * work over with execute().
+ */
+public final class Http2Session
+  implements Selectable {
+
+  private static final Log log =
+    LogFactory.getLog(Http2Session.class);
+
+  public static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+  private static final int READ_BUFFER_SIZE =
+    2 * (Frame.HEADER_SIZE + Frame.DEFAULT_MAX_SIZE);
+  private static final int HIGH_WATER = 256 * 1024;
+
+  public static Http2SessionBuilder make(
+    SocketChannel channel) {
+    return new Http2SessionBuilder(channel);
+  }
+
+  public static final class Http2SessionBuilder
+    implements Supplier<Http2Session> {
+
+    private final SocketChannel channel;
+    private EventLoop loop;
+    private SessionListener listener;
+    private boolean client = false;
+    private int window = FlowController.DEFAULT_WINDOW_SIZE;
+    private int max_streams = DEFAULT_MAX_CONCURRENT_STREAMS;
+    private int table_size = Dhe.DEFAULT_TABLE_SIZE;
+    private int table_entries = Dhe.DEFAULT_TABLE_ENTRIES;
+
+    Http2SessionBuilder(SocketChannel channel) {
+      this.channel = checkNotNull(channel);
+    }
+
+    public Http2SessionBuilder loop(EventLoop loop) {
+      this.loop = checkNotNull(loop);
+      return this;
+    }
+
+    public Http2SessionBuilder listener(SessionListener listener) {
+      this.listener = checkNotNull(listener);
+      return this;
+    }
+
+    public Http2SessionBuilder client() {
+      this.client = true;
+      return this;
+    }
+
+    public Http2SessionBuilder server() {
+      this.client = false;
+      return this;
+    }
+
+    /**
+     * The receive window we advertise for each stream
+     */
+    public Http2SessionBuilder initialWindowSize(int size) {
+      checkArgument(size > 0);
+      this.window = size;
+      return this;
+    }
+
+    /**
+     * Most streams the peer may have open at once
+     */
+    public Http2SessionBuilder maxConcurrentStreams(int max) {
+      checkArgument(max > 0);
+      this.max_streams = max;
+      return this;
+    }
+
+    /**
+     * Most bytes of header table the peer may have us hold
+     */
+    public Http2SessionBuilder headerTableSize(int size) {
+      checkArgument(size >= 0);
+      this.table_size = size;
+      return this;
+    }
+
+    /**
+     * Most entries in the header table the peer may have us hold
+     */
+    public Http2SessionBuilder headerTableEntries(int entries) {
+      checkArgument(entries >= 0);
+      this.table_entries = entries;
+      return this;
+    }
+
+    public Http2Session get() {
+      checkState(loop != null);
+      checkState(listener != null);
+      return new Http2Session(this);
+    }
+  }
+
+  private final SocketChannel channel;
+  private final EventLoop loop;
+  private final SessionListener listener;
+  private final boolean client;
+  private final int max_streams;
+  private final int window;
+  private final Dhe encoder;
+  private final Dhe header_decoder;
+  private final FrameDecoder decoder;
+  private final FrameWriter writer;
+  private final FlowController flow;
+  private final FrameScheduler scheduler;
+  private final IntObjectMap<Http2Stream> streams =
+    new IntObjectMap<Http2Stream>();
+  private final RangedIntegerSupplier ids;
+  private final ByteBuffer in =
+    ByteBuffer.allocate(READ_BUFFER_SIZE);
+  private final Runnable flusher =
+    new Runnable() {
+      public void run() {
+        try {
+          flush();
+        } catch (IOException e) {
+          log.debug("Write failed", e);
+          close();
+        }
+      }
+  };
+  private SelectionKey key;
+  private int csh_pending;
+  private int last_peer_stream = 0;
+  private int peer_max_streams = Integer.MAX_VALUE;
+  private int table_size;
+  private int table_entries;
+  private int peer_table_size = Dhe.DEFAULT_TABLE_SIZE;
+  private int peer_table_entries = Dhe.DEFAULT_TABLE_ENTRIES;
+  private List<HeadersFrame> partial_headers;
+  private boolean going_away = false;
+  private boolean close_after_flush = false;
+  private boolean flush_scheduled = false;
+  private boolean closed = false;
+
+  protected Http2Session(
+    Http2SessionBuilder builder) {
+    this.channel = builder.channel;
+    this.loop = builder.loop;
+    this.listener = builder.listener;
+    this.client = builder.client;
+    this.max_streams = builder.max_streams;
+    this.window = builder.window;
+    this.table_size = builder.table_size;
+    this.table_entries = builder.table_entries;
+    this.encoder = client ?
+      Dhe.forRequest() :
+      Dhe.forResponse();
+    this.header_decoder = client ?
+      Dhe.forResponse() :
+      Dhe.forRequest();
+    this.header_decoder.limit(
+      table_size,
+      table_entries);
+    this.decoder = FrameDecoder.make(header_decoder);
+    this.writer = FrameWriter.make(channel).get();
+    this.flow = FlowController.make()
+      .initialReceiveWindow(window)
+      .get();
+    this.scheduler = FrameScheduler.make()
+      .flowControl(flow)
+      .get();
+    this.ids = client ?
+      RangedIntegerSupplier.forAllOddIntegers(Integer.MAX_VALUE) :
+      RangedIntegerSupplier.forAllEvenIntegers(2, Integer.MAX_VALUE);
+    this.csh_pending = client ?
+      0 : SettingsFrame.clientSessionHeaderLength();
+  }
+
+  public EventLoop loop() {
+    return loop;
+  }
+
+  public void execute(Runnable task) {
+    loop.execute(task);
+  }
+
+  public boolean isClient() {
+    return client;
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  Dhe encoder() {
+    checkState(loop.inEventLoop());
+    return encoder;
+  }
+
+  /**
+   * Registers the channel with the event loop and sends our
+   * SETTINGS (preceded by the client session header for clients)
+   */
+  public Http2Session start() {
+    loop.execute(
+      new Runnable() {
+        public void run() {
+          try {
+            channel.configureBlocking(false);
+            key = loop.register(
+              channel,
+              SelectionKey.OP_READ,
+              Http2Session.this);
+            scheduler.control(
+              SettingsFrame.make(client)
+                .set(Settings.MAX_CONCURRENT_STREAMS, max_streams)
+                .set(Settings.INITIAL_WINDOW_SIZE, window)
+                .set(Settings.HEADER_TABLE_SIZE, table_size)
+                .set(Settings.HEADER_TABLE_ENTRIES, table_entries)
+                .get());
+            flush();
+          } catch (IOException e) {
+            log.debug("Failed to start session", e);
+            close();
+          }
+        }
+    });
+    return this;
+  }
+
+  /**
+   * Opens a new stream from our side of the connection
+   */
+  public Http2Stream newStream(
+    StreamHandler handler) {
+    checkState(loop.inEventLoop());
+    checkState(!going_away && !closed);
+    checkState(streams.size() < peer_max_streams);
+    Http2Stream stream =
+      new Http2Stream(this, ids.get(), null);
+    stream.handler(handler);
+    streams.put(stream.id(), stream);
+    flow.open(stream.id());
+    return stream;
+  }
+
+  public void ping() {
+    checkState(loop.inEventLoop());
+    scheduler.control(
+      PingFrame.make()
+        .data(ByteBuffer.allocate(8).putLong(0, System.nanoTime()))
+        .get());
+    requestFlush();
+  }
+
+  /**
+   * Changes how much header table the peer may have us hold, and
+   * advertises it. The peer resizes, evicting as needed, with its
+   * next header block; until then blocks it sent under the old 
+   * limits are still accepted.
+   */
+  public void headerTableSize(int size, int entries) {
+    checkArgument(size >= 0);
+    checkArgument(entries >= 0);
+    checkState(loop.inEventLoop());
+    table_size = size;
+    table_entries = entries;
+    header_decoder.limit(size, entries);
+    scheduler.control(
+      SettingsFrame.make()
+        .set(Settings.HEADER_TABLE_SIZE, size)
+        .set(Settings.HEADER_TABLE_ENTRIES, entries)
+        .get());
+    requestFlush();
+  }
+
+  /**
+   * Tells the peer we're going away. With NO_ERROR the session
+   * closes once the remaining streams complete, otherwise as soon
+   * as the GOAWAY has been written.
+   */
+  public void goAway(Status status) {
+    checkNotNull(status);
+    checkState(loop.inEventLoop());
+    if (closed)
+      return;
+    going_away = true;
+    close_after_flush |= status != Status.NO_ERROR;
+    scheduler.control(
+      GoAwayFrame.make()
+        .lastStream(last_peer_stream)
+        .status(status)
+        .get());
+    requestFlush();
+  }
+
+  void send(Http2Stream stream, HeadersFrame frame) {
+    checkState(loop.inEventLoop());
+    checkArgument(frame.id() == stream.id());
+    scheduler.headers(frame);
+    requestFlush();
+  }
+
+  void send(Http2Stream stream, DataFrame frame) {
+    checkState(loop.inEventLoop());
+    checkArgument(frame.id() == stream.id());
+    if (streams.get(stream.id()) == stream)
+      stream.queued += frame.size();
+    scheduler.data(frame);
+    requestFlush();
+  }
+
+  void send(Http2Stream stream, Iterable<DataFrame> body) {
+    checkState(loop.inEventLoop());
+    scheduler.data(stream.id(), body);
+    requestFlush();
+  }
+
+  void reset(Http2Stream stream, Status status) {
+    checkState(loop.inEventLoop());
+    if (streams.get(stream.id()) != stream)
+      return;
+    remove(stream);
+    rst(stream.id(), status);
+  }
+
+  private void rst(int stream_id, Status status) {
+    scheduler.control(
+      RstStreamFrame.make()
+        .streamId(stream_id)
+        .status(status)
+        .get());
+    requestFlush();
+  }
+
+  void consumed(Http2Stream stream, int bytes) {
+    checkState(loop.inEventLoop());
+    bytes = min(bytes, stream.unconsumed);
+    if (bytes == 0)
+      return;
+    stream.unconsumed -= bytes;
+    flow.consumed(stream.id(), bytes);
+    sendUpdates();
+  }
+
+  private void sendUpdates() {
+    WindowUpdateFrame update = null;
+    boolean any = false;
+    while ((update = flow.pollUpdate()) != null) {
+      scheduler.control(update);
+      any = true;
+    }
+    if (any)
+      requestFlush();
+  }
+
+  private void remove(Http2Stream stream) {
+    streams.remove(stream.id());
+    scheduler.close(stream.id());
+    flow.close(stream.id());
+    if (stream.unconsumed > 0) {
+      // unread data still holds the connection window
+      flow.consumed(stream.id(), stream.unconsumed);
+      stream.unconsumed = 0;
+      sendUpdates();
+    }
+    stream.queued = 0;
+    stream.drained();
+  }
+
+  private void requestFlush() {
+    if (!flush_scheduled && !closed) {
+      flush_scheduled = true;
+      loop.execute(flusher);
+    }
+  }
+
+  public void ready(SelectionKey key)
+    throws IOException {
+    if (key.isReadable())
+      read();
+    if (!closed && key.isValid())
+      flush();
+  }
+
+  private void read()
+    throws IOException {
+    int n = channel.read(in);
+    if (n < 0) {
+      close();
+      return;
+    }
+    in.flip();
+    try {
+      if (csh_pending == 0 || consumeCsh()) {
+        Frame<?> frame = null;
+        while (!closed && (frame = decoder.next(in)) != null)
+          dispatch(frame);
+      }
+      in.compact();
+    } catch (FlowControlException e) {
+      log.debug("Flow control error", e);
+      in.clear();
+      goAway(Status.FLOW_CONTROL_ERROR);
+    } catch (IOException e) {
+      protocolError(e);
+    } catch (RuntimeException e) {
+      // malformed input some codecs reject with unchecked exceptions;
+      // stream handler failures are caught before they get here
+      protocolError(e);
+    }
+  }
+
+  private void protocolError(Exception e) {
+    log.debug("Protocol error", e);
+    in.clear();
+    goAway(Status.PROTOCOL_ERROR);
+  }
+
+  private boolean consumeCsh()
+    throws IOException {
+    if (in.remaining() < csh_pending)
+      return false;
+    if (!SettingsFrame.consumeCsh(ByteBufferInputStream.of(in)))
+      throw new IOException(); // not an HTTP/2 client
+    csh_pending = 0;
+    return true;
+  }
+
+  private boolean isPeerStream(int id) {
+    return ((id & 0x1) == 0x1) != client;
+  }
+
+  private void dispatch(Frame<?> frame)
+    throws IOException {
+    if (partial_headers != null &&
+        (!(frame instanceof HeadersFrame) ||
+         frame.id() != partial_headers.get(0).id()))
+      throw new IOException(); // header set interrupted
+    if (frame instanceof DataFrame)
+      onData((DataFrame)frame);
+    else if (frame instanceof HeadersFrame)
+      onHeaders((HeadersFrame)frame);
+    else if (frame instanceof WindowUpdateFrame)
+      onWindowUpdate((WindowUpdateFrame)frame);
+    else if (frame instanceof RstStreamFrame)
+      onRstStream((RstStreamFrame)frame);
+    else if (frame instanceof SettingsFrame)
+      onSettings((SettingsFrame)frame);
+    else if (frame instanceof PingFrame)
+      onPing((PingFrame)frame);
+    else if (frame instanceof GoAwayFrame)
+      onGoAway((GoAwayFrame)frame);
+    else if (frame instanceof PushPromiseFrame)
+      onPushPromise((PushPromiseFrame)frame);
+  }
+
+  private void onData(DataFrame frame)
+    throws IOException {
+    if (frame.id() == 0)
+      throw new IOException(); // DATA needs a stream
+    Http2Stream stream = streams.get(frame.id());
+    if (!flow.received(frame)) {
+      if (stream != null)
+        reset(stream, Status.FLOW_CONTROL_ERROR);
+      return;
+    }
+    if (stream == null || stream.remote_closed) {
+      flow.consumed(frame.id(), frame.size());
+      flow.close(frame.id());
+      rst(frame.id(), Status.STREAM_CLOSED);
+    } else {
+      if (stream.manual_window)
+        stream.unconsumed += frame.size();
+      try {
+        if (stream.handler() != null)
+          stream.handler().onData(stream, frame);
+      } catch (RuntimeException e) {
+        log.warn("Stream handler failed", e);
+        reset(stream, Status.INTERNAL_ERROR);
+      }
+      if (!stream.manual_window)
+        flow.consumed(frame.id(), frame.size());
+      if (frame.fin())
+        remoteClosed(stream);
+    }
+    sendUpdates();
+  }
+
+  private void onHeaders(HeadersFrame frame)
+    throws IOException {
+    if (frame.moreHeaders() || partial_headers != null) {
+      // the set was split over several frames, hand it on whole
+      if (partial_headers == null)
+        partial_headers = new ArrayList<HeadersFrame>();
+      partial_headers.add(frame);
+      if (frame.moreHeaders())
+        return;
+      frame = HeadersFrame.join(partial_headers);
+      partial_headers = null;
+    }
+    int id = frame.id();
+    if (id == 0)
+      throw new IOException(); // HEADERS needs a stream
+    Http2Stream stream = streams.get(id);
+    if (stream == null) {
+      if (!isPeerStream(id) || id <= last_peer_stream) {
+        rst(id, Status.PROTOCOL_ERROR);
+        return;
+      }
+      last_peer_stream = id;
+      if (going_away) {
+        rst(id, Status.REFUSED_STREAM);
+        return;
+      }
+      if (streams.size() >= max_streams) {
+        rst(id, Status.REFUSED_STREAM);
+        return;
+      }
+      stream = new Http2Stream(this, id, null);
+      streams.put(id, stream);
+      flow.open(id);
+      if (frame.hasPriority())
+        scheduler.open(id, frame.priority());
+      stream.handler(listener.onStream(stream));
+    }
+    try {
+      if (stream.handler() != null)
+        stream.handler().onHeaders(stream, frame);
+    } catch (RuntimeException e) {
+      log.warn("Stream handler failed", e);
+      reset(stream, Status.INTERNAL_ERROR);
+      return;
+    }
+    if (frame.fin())
+      remoteClosed(stream);
+  }
+
+  private void onPushPromise(PushPromiseFrame frame)
+    throws IOException {
+    int id = frame.promisedId();
+    if (!client || !isPeerStream(id) || id <= last_peer_stream) {
+      goAway(Status.PROTOCOL_ERROR);
+      return;
+    }
+    last_peer_stream = id;
+    if (going_away) {
+      rst(id, Status.REFUSED_STREAM);
+      return;
+    }
+    Http2Stream stream =
+      new Http2Stream(this, id, frame);
+    stream.local_closed = true;
+    streams.put(id, stream);
+    flow.open(id);
+    stream.handler(listener.onStream(stream));
+  }
+
+  private void onWindowUpdate(WindowUpdateFrame frame)
+    throws IOException {
+    flow.onWindowUpdate(frame);
+    scheduler.windowUpdated(frame.id());
+  }
+
+  private void onRstStream(RstStreamFrame frame) {
+    Http2Stream stream = streams.get(frame.id());
+    if (stream == null)
+      return;
+    remove(stream);
+    Status status = frame.status();
+    notifyReset(stream, status != null ? status : Status.CANCEL);
+  }
+
+  private void onSettings(SettingsFrame frame)
+    throws IOException {
+    flow.onSettings(frame);
+    int max = frame.getValue(Settings.MAX_CONCURRENT_STREAMS);
+    if (max >= 0)
+      peer_max_streams = max;
+    int size = frame.getValue(Settings.HEADER_TABLE_SIZE);
+    int entries = frame.getValue(Settings.HEADER_TABLE_ENTRIES);
+    if (size >= 0 || entries >= 0) {
+      if (size >= 0)
+        peer_table_size = size;
+      if (entries >= 0)
+        peer_table_entries = entries;
+      encoder.resize(peer_table_size, peer_table_entries);
+    }
+    scheduler.windowUpdated(0);
+  }
+
+  private void onPing(PingFrame frame) {
+    if (frame.pong())
+      return;
+    scheduler.control(
+      PingFrame.make()
+        .pong()
+        .data(frame.payload())
+        .get());
+  }
+
+  private void onGoAway(GoAwayFrame frame) {
+    going_away = true;
+    List<Http2Stream> refused =
+      new ArrayList<Http2Stream>();
+    for (Http2Stream stream : streams)
+      if (!isPeerStream(stream.id()) &&
+          stream.id() > frame.lastStream())
+        refused.add(stream);
+    for (Http2Stream stream : refused) {
+      remove(stream);
+      notifyReset(stream, Status.REFUSED_STREAM);
+    }
+  }
+
+  private void notifyReset(Http2Stream stream, Status status) {
+    try {
+      if (stream.handler() != null)
+        stream.handler().onReset(stream, status);
+    } catch (RuntimeException e) {
+      log.warn("Stream handler failed", e);
+    }
+  }
+
+  private void remoteClosed(Http2Stream stream) {
+    stream.remote_closed = true;
+    if (stream.isClosed())
+      remove(stream);
+  }
+
+  private void written(int stream_id, int size) {
+    Http2Stream stream = streams.get(stream_id);
+    if (stream == null || stream.queued == 0)
+      return;
+    stream.queued = max(0, stream.queued - size);
+    if (stream.queued == 0)
+      stream.drained();
+  }
+
+  private void localClosed(int stream_id) {
+    Http2Stream stream = streams.get(stream_id);
+    if (stream == null)
+      return;
+    stream.local_closed = true;
+    if (stream.isClosed())
+      remove(stream);
+  }
+
+  /**
+   * Moves whatever the scheduler and flow control allow into the
+   * writer, and writes as much as the socket will take
+   */
+  private void flush()
+    throws IOException {
+    flush_scheduled = false;
+    if (closed || key == null)
+      return;
+    boolean more = true;
+    while (more) {
+      Frame<?> frame = null;
+      while (writer.queued() < HIGH_WATER &&
+             (frame = scheduler.next()) != null) {
+        if (frame instanceof HeadersFrame) {
+          writeHeaders((HeadersFrame)frame);
+          continue;
+        }
+        boolean fin =
+          frame instanceof DataFrame && frame.fin();
+        int size = frame instanceof DataFrame ?
+          ((DataFrame)frame).size() : 0;
+        writer.write(frame);
+        if (size > 0)
+          written(frame.id(), size);
+        if (fin)
+          localClosed(frame.id());
+      }
+      if (!writer.flush()) {
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        return;
+      }
+      more = frame != null;
+    }
+    key.interestOps(SelectionKey.OP_READ);
+    if (close_after_flush || (going_away && streams.isEmpty()))
+      close();
+  }
+
+  /**
+   * Writes the headers over as many HEADERS frames as they need. A 
+   * header too big for any frame resets just its stream; the 
+   * encoder is left as it was, so the connection carries on.
+   */
+  private void writeHeaders(HeadersFrame frame)
+    throws IOException {
+    List<HeadersFrame> frames;
+    try {
+      frames = frame.split();
+    } catch (IllegalArgumentException e) {
+      log.debug("Headers too large", e);
+      Http2Stream stream = streams.get(frame.id());
+      if (stream != null) {
+        reset(stream, Status.FRAME_TOO_LARGE);
+        notifyReset(stream, Status.FRAME_TOO_LARGE);
+      } else {
+        rst(frame.id(), Status.FRAME_TOO_LARGE);
+      }
+      return;
+    }
+    for (HeadersFrame f : frames)
+      writer.write(f);
+    if (frame.fin())
+      localClosed(frame.id());
+  }
+
+  /**
+   * Closes the connection immediately, resetting any open streams
+   */
+  public void close() {
+    if (closed)
+      return;
+    closed = true;
+    if (key != null)
+      key.cancel();
+    try {
+      channel.close();
+    } catch (IOException e) {}
+    List<Http2Stream> open =
+      new ArrayList<Http2Stream>();
+    for (Http2Stream stream : streams)
+      open.add(stream);
+    for (Http2Stream stream : open) {
+      remove(stream);
+      notifyReset(stream, Status.CANCEL);
+    }
+    listener.onClose(this);
+  }
+
+}
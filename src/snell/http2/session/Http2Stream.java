@@ -0,0 +1,178 @@
+package snell.http2.session;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import snell.http2.frames.DataFrame;
+import snell.http2.frames.HeadersFrame;
+import snell.http2.frames.HeadersFrame.HeadersFrameBuilder;
+import snell.http2.frames.PushPromiseFrame;
+import snell.http2.frames.Status;
+
+/**
+ * One stream within an Http2Session. Apart from id() and
+ * session(), methods must be called on the session's event loop
+ * (handler callbacks already are; otherwise use
+ * session().execute()).
+ */
+public final class Http2Stream {
+
+  private final Http2Session session;
+  private final int id;
+  private final PushPromiseFrame promise;
+  private StreamHandler handler;
+  boolean local_closed;
+  boolean remote_closed;
+  boolean manual_window;
+  int unconsumed;
+  int queued;
+  private List<Runnable> drained;
+
+  Http2Stream(
+    Http2Session session,
+    int id,
+    PushPromiseFrame promise) {
+    this.session = session;
+    this.id = id;
+    this.promise = promise;
+  }
+
+  public int id() {
+    return id;
+  }
+
+  public Http2Session session() {
+    return session;
+  }
+
+  /**
+   * The PUSH_PROMISE that opened this stream, if it was pushed
+   */
+  public PushPromiseFrame promise() {
+    return promise;
+  }
+
+  StreamHandler handler() {
+    return handler;
+  }
+
+  public Http2Stream handler(StreamHandler handler) {
+    this.handler = handler;
+    return this;
+  }
+
+  /**
+   * A HEADERS builder for this stream, bound to the session's
+   * header encoder. Frames must be sent in the order they're built.
+   */
+  public HeadersFrameBuilder headers() {
+    return HeadersFrame.make(session.encoder())
+      .streamId(id);
+  }
+
+  public HeadersFrameBuilder headers(int priority) {
+    return HeadersFrame.make(true, session.encoder())
+      .streamId(id)
+      .priority(priority);
+  }
+
+  public Http2Stream send(HeadersFrame frame) {
+    checkNotNull(frame);
+    session.send(this, frame);
+    return this;
+  }
+
+  public Http2Stream send(DataFrame frame) {
+    checkNotNull(frame);
+    session.send(this, frame);
+    return this;
+  }
+
+  /**
+   * Queues a body, e.g. from DataFrame.produce(). Frames are
+   * pulled as the scheduler and flow control allow.
+   */
+  public Http2Stream send(Iterable<DataFrame> body) {
+    checkNotNull(body);
+    session.send(this, body);
+    return this;
+  }
+
+  /**
+   * Ends our side of the stream with an empty FIN frame, after
+   * anything already queued
+   */
+  public Http2Stream end() {
+    return send(
+      DataFrame.make()
+        .streamId(id)
+        .fin()
+        .get());
+  }
+
+  /**
+   * Stops received DATA from being credited back to the peer as
+   * soon as onData() returns. The application calls consumed() as
+   * it reads instead, so a slow reader holds the sender back.
+   */
+  public Http2Stream manualFlowControl() {
+    this.manual_window = true;
+    return this;
+  }
+
+  /**
+   * Credits back received bytes the application has now read.
+   * Only needed with manualFlowControl().
+   */
+  public void consumed(int bytes) {
+    checkArgument(bytes >= 0);
+    session.consumed(this, bytes);
+  }
+
+  /**
+   * Bytes of DATA passed to send(DataFrame) that have not been
+   * written to the connection yet. Bodies queued as an Iterable
+   * are not counted.
+   */
+  public int queued() {
+    return queued;
+  }
+
+  /**
+   * Runs the task on the event loop once queued() drops to zero,
+   * or the stream is closed, whichever comes first. Runs it
+   * straight away if neither needs waiting for.
+   */
+  public void whenDrained(Runnable task) {
+    checkNotNull(task);
+    if (queued == 0 || session.isClosed()) {
+      task.run();
+      return;
+    }
+    if (drained == null)
+      drained = new ArrayList<Runnable>();
+    drained.add(task);
+  }
+
+  void drained() {
+    if (drained == null)
+      return;
+    List<Runnable> tasks = drained;
+    drained = null;
+    for (Runnable task : tasks)
+      task.run();
+  }
+
+  public void reset(Status status) {
+    checkNotNull(status);
+    session.reset(this, status);
+  }
+
+  public boolean isClosed() {
+    return local_closed && remote_closed;
+  }
+
+}
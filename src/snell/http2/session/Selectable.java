@@ -0,0 +1,16 @@
+package snell.http2.session;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Attachment for keys registered with an EventLoop's selector
+ */
+interface Selectable {
+
+  void ready(SelectionKey key)
+    throws IOException;
+
+  void close();
+
+}
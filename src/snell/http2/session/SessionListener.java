@@ -0,0 +1,18 @@
+package snell.http2.session;
+
+/**
+ * Session level callbacks, made on the session's event loop
+ */
+public interface SessionListener {
+
+  /**
+   * A stream was opened by the peer, either with HEADERS or
+   * promised with PUSH_PROMISE. Returns the handler for its frames.
+   */
+  StreamHandler onStream(
+    Http2Stream stream);
+
+  void onClose(
+    Http2Session session);
+
+}
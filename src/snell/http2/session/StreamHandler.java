@@ -0,0 +1,34 @@
+package snell.http2.session;
+
+import java.io.IOException;
+
+import snell.http2.frames.DataFrame;
+import snell.http2.frames.HeadersFrame;
+import snell.http2.frames.Status;
+
+/**
+ * Receives the frames for one stream. Called on the session's
+ * event loop. DATA payloads point into the session's read buffer
+ * and must be consumed before onData returns.
+ */
+public interface StreamHandler {
+
+  void onHeaders(
+    Http2Stream stream,
+    HeadersFrame frame)
+      throws IOException;
+
+  void onData(
+    Http2Stream stream,
+    DataFrame frame)
+      throws IOException;
+
+  /**
+   * The stream was reset by the peer, or abandoned because the
+   * session closed
+   */
+  void onReset(
+    Http2Stream stream,
+    Status status);
+
+}
@@ -0,0 +1,121 @@
+package snell.http2.utils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads bits most significant first from a byte[] or ByteBuffer,
+ * through a 64 bit register refilled a byte at a time. Nothing is
+ * allocated per read; reads of up to 32 bits come back as an int.
+ * Reading a ByteBuffer does not move its position.
+ */
+public final class BitReader {
+
+  public static BitReader of(byte[] src) {
+    return of(src, 0, src.length);
+  }
+
+  public static BitReader of(
+    byte[] src,
+    int off,
+    int len) {
+    checkPositionIndexes(off, off + len, src.length);
+    return new BitReader(src, null, off, off + len);
+  }
+
+  public static BitReader of(ByteBuffer src) {
+    if (src.hasArray())
+      return new BitReader(
+        src.array(),
+        null,
+        src.arrayOffset() + src.position(),
+        src.arrayOffset() + src.limit());
+    return new BitReader(
+      null,
+      checkNotNull(src),
+      src.position(),
+      src.limit());
+  }
+
+  private final byte[] array;
+  private final ByteBuffer buffer;
+  private final int end;
+  private int pos;
+  private long acc; // unread bits, left aligned
+  private int bits;
+
+  private BitReader(
+    byte[] array,
+    ByteBuffer buffer,
+    int pos,
+    int end) {
+    this.array = array;
+    this.buffer = buffer;
+    this.pos = pos;
+    this.end = end;
+  }
+
+  private void fill() {
+    if (array != null) {
+      while (bits <= 56 && pos < end) {
+        acc |= (array[pos++] & 0xFFL) << (56 - bits);
+        bits += 8;
+      }
+    } else {
+      while (bits <= 56 && pos < end) {
+        acc |= (buffer.get(pos++) & 0xFFL) << (56 - bits);
+        bits += 8;
+      }
+    }
+  }
+
+  /**
+   * True while there are unread bits
+   */
+  public boolean hasMore() {
+    return bits > 0 || pos < end;
+  }
+
+  /**
+   * The number of unread bits
+   */
+  public long available() {
+    return bits + (end - pos) * 8L;
+  }
+
+  /**
+   * The next n bits (1 to 32) without consuming them, right
+   * aligned. Past the end of the input they read as zero.
+   */
+  public int peekBits(int n) {
+    if (bits < n)
+      fill();
+    return (int)(acc >>> (64 - n));
+  }
+
+  public void skipBits(int n) {
+    if (bits < n) {
+      fill();
+      if (bits < n)
+        throw new IllegalStateException();
+    }
+    acc <<= n;
+    bits -= n;
+  }
+
+  /**
+   * Reads n bits (1 to 32), right aligned
+   */
+  public int readBits(int n) {
+    int v = peekBits(n);
+    skipBits(n);
+    return v;
+  }
+
+  public boolean readBit() {
+    return readBits(1) != 0;
+  }
+
+}
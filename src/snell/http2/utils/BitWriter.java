@@ -0,0 +1,119 @@
+package snell.http2.utils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkPositionIndex;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes bits most significant first into a byte[] or at the
+ * position of a ByteBuffer, collecting them in a 64 bit register
+ * that is drained four bytes at a time. The destination is never
+ * grown: it must have room for everything written, rounded up to
+ * a whole byte, or writes fail with the usual index or buffer
+ * overflow exceptions. Call flush() at the end to pad out and
+ * write the last partial byte.
+ */
+public final class BitWriter {
+
+  public static BitWriter of(byte[] out) {
+    return of(out, 0);
+  }
+
+  public static BitWriter of(
+    byte[] out,
+    int off) {
+    checkPositionIndex(off, out.length);
+    return new BitWriter(out, null, off);
+  }
+
+  public static BitWriter of(ByteBuffer out) {
+    return new BitWriter(null, checkNotNull(out), out.position());
+  }
+
+  private final byte[] array;
+  private final ByteBuffer buffer;
+  private final int start;
+  private int pos;
+  private long acc; // pending bits, left aligned
+  private int bits;
+
+  private BitWriter(
+    byte[] array,
+    ByteBuffer buffer,
+    int start) {
+    this.array = array;
+    this.buffer = buffer;
+    this.start = start;
+    this.pos = start;
+  }
+
+  private void drain() {
+    if (array != null) {
+      array[pos] = (byte)(acc >>> 56);
+      array[pos + 1] = (byte)(acc >>> 48);
+      array[pos + 2] = (byte)(acc >>> 40);
+      array[pos + 3] = (byte)(acc >>> 32);
+    } else {
+      buffer.putInt((int)(acc >>> 32));
+    }
+    pos += 4;
+    acc <<= 32;
+    bits -= 32;
+  }
+
+  /**
+   * Writes the low n bits (0 to 64) of value
+   */
+  public BitWriter writeBits(
+    long value,
+    int n) {
+    if (n > 32) {
+      put(value >>> 32, n - 32);
+      n = 32;
+    }
+    if (n > 0)
+      put(value, n);
+    return this;
+  }
+
+  private void put(
+    long value,
+    int n) {
+    if (bits >= 32)
+      drain();
+    acc |= value << (64 - n) >>> bits;
+    bits += n;
+  }
+
+  public BitWriter writeBit(boolean on) {
+    return writeBits(on ? 1 : 0, 1);
+  }
+
+  /**
+   * Writes out any pending bits, padding the last byte with zeros
+   */
+  public BitWriter flush() {
+    if (bits >= 32)
+      drain();
+    for (; bits > 0; bits -= 8) {
+      if (array != null)
+        array[pos] = (byte)(acc >>> 56);
+      else
+        buffer.put((byte)(acc >>> 56));
+      pos++;
+      acc <<= 8;
+    }
+    bits = 0;
+    return this;
+  }
+
+  /**
+   * Bytes written so far, not counting bits still pending
+   * before a flush()
+   */
+  public int length() {
+    return pos - start;
+  }
+
+}
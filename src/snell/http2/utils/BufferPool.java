@@ -0,0 +1,206 @@
+package snell.http2.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Size-class buffer pool. Requests are rounded up to the next
+ * power of two between 64 bytes and 64k; anything larger is
+ * allocated unpooled. Released buffers go to a small per-thread
+ * cache first and then to a bounded arena shared by all threads.
+ * There is one heap and one direct pool per process.
+ *
+ * Buffers are reference counted (see PooledBuffer). Leak
+ * detection, when enabled, records the allocation site of every
+ * buffer and logs any that are garbage collected without having
+ * been released. It is off by default as it's fairly expensive.
+ */
+public final class BufferPool {
+
+  private static final Log log =
+    LogFactory.getLog(BufferPool.class);
+
+  private static final int MIN_SHIFT = 6;
+  private static final int MAX_SHIFT = 16;
+  private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+  private static final int THREAD_CACHE_SIZE = 16;
+  private static final int ARENA_SIZE = 256;
+
+  public static final int MAX_POOLED_SIZE = 1 << MAX_SHIFT;
+
+  private static final BufferPool HEAP =
+    new BufferPool(false);
+  private static final BufferPool DIRECT =
+    new BufferPool(true);
+
+  public static BufferPool heap() {
+    return HEAP;
+  }
+
+  public static BufferPool direct() {
+    return DIRECT;
+  }
+
+  private static volatile boolean leak_detection = false;
+  private static final ReferenceQueue<PooledBuffer> leaks =
+    new ReferenceQueue<PooledBuffer>();
+  private static final Set<Leak> live =
+    Collections.newSetFromMap(
+      new ConcurrentHashMap<Leak,Boolean>());
+
+  public static void leakDetection(boolean on) {
+    leak_detection = on;
+  }
+
+  public static boolean leakDetection() {
+    return leak_detection;
+  }
+
+  private final boolean direct;
+  private final Arena[] arenas =
+    new Arena[CLASSES];
+  private final ThreadLocal<Cache> caches =
+    new ThreadLocal<Cache>() {
+      protected Cache initialValue() {
+        return new Cache();
+      }
+  };
+
+  private BufferPool(boolean direct) {
+    this.direct = direct;
+    for (int n = 0; n < CLASSES; n++)
+      arenas[n] = new Arena();
+  }
+
+  public boolean isDirect() {
+    return direct;
+  }
+
+  /**
+   * Returns a buffer with a reference count of one, position
+   * zero and limit set to the requested capacity. The backing
+   * storage may be larger than requested and is not zeroed.
+   */
+  public PooledBuffer allocate(int capacity) {
+    checkArgument(capacity >= 0);
+    int sc = sizeClass(capacity);
+    PooledBuffer buf = null;
+    if (sc < 0) {
+      buf = new PooledBuffer(this, -1, newBuffer(capacity));
+    } else {
+      buf = caches.get().poll(sc);
+      if (buf == null)
+        buf = arenas[sc].poll();
+      if (buf == null)
+        buf = new PooledBuffer(
+          this, sc, newBuffer(1 << (sc + MIN_SHIFT)));
+    }
+    buf.init(capacity);
+    if (leak_detection) {
+      reportLeaks();
+      buf.track(new Leak(buf));
+    }
+    return buf;
+  }
+
+  void recycle(PooledBuffer buf) {
+    int sc = buf.sizeClass();
+    if (sc < 0)
+      return;
+    if (!caches.get().offer(sc, buf))
+      arenas[sc].offer(buf);
+  }
+
+  private ByteBuffer newBuffer(int capacity) {
+    return direct ?
+      ByteBuffer.allocateDirect(capacity) :
+      ByteBuffer.allocate(capacity);
+  }
+
+  static int sizeClass(int capacity) {
+    if (capacity > MAX_POOLED_SIZE)
+      return -1;
+    if (capacity <= 1 << MIN_SHIFT)
+      return 0;
+    return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+  }
+
+  private static final class Cache {
+    private final PooledBuffer[][] stacks =
+      new PooledBuffer[CLASSES][THREAD_CACHE_SIZE];
+    private final int[] sizes =
+      new int[CLASSES];
+    PooledBuffer poll(int sc) {
+      int s = sizes[sc];
+      if (s == 0)
+        return null;
+      PooledBuffer buf = stacks[sc][--s];
+      stacks[sc][s] = null;
+      sizes[sc] = s;
+      return buf;
+    }
+    boolean offer(int sc, PooledBuffer buf) {
+      int s = sizes[sc];
+      if (s == THREAD_CACHE_SIZE)
+        return false;
+      stacks[sc][s] = buf;
+      sizes[sc] = s + 1;
+      return true;
+    }
+  }
+
+  private static final class Arena {
+    private final ConcurrentLinkedQueue<PooledBuffer> free =
+      new ConcurrentLinkedQueue<PooledBuffer>();
+    private final AtomicInteger size =
+      new AtomicInteger();
+    PooledBuffer poll() {
+      PooledBuffer buf = free.poll();
+      if (buf != null)
+        size.decrementAndGet();
+      return buf;
+    }
+    void offer(PooledBuffer buf) {
+      if (size.incrementAndGet() > ARENA_SIZE) {
+        size.decrementAndGet();
+        return; // let the gc have it
+      }
+      free.offer(buf);
+    }
+  }
+
+  static final class Leak
+    extends WeakReference<PooledBuffer> {
+    private final Throwable site =
+      new Throwable("Buffer allocated here");
+    Leak(PooledBuffer buf) {
+      super(buf, leaks);
+      live.add(this);
+    }
+    void close() {
+      live.remove(this);
+      clear();
+    }
+  }
+
+  private static void reportLeaks() {
+    Leak leak = null;
+    while((leak = (Leak)leaks.poll()) != null) {
+      if (live.remove(leak))
+        log.warn(
+          "Pooled buffer was garbage collected without being released",
+          leak.site);
+    }
+  }
+}
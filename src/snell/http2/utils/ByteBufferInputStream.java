@@ -0,0 +1,67 @@
+package snell.http2.utils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.Math.min;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream view over the remaining bytes of a ByteBuffer.
+ * Reads advance the position of the wrapped buffer, nothing
+ * is copied up front. Used to hand frame payload slices to the
+ * stream-oriented header serializers.
+ */
+public final class ByteBufferInputStream
+  extends InputStream {
+
+  public static ByteBufferInputStream of(ByteBuffer buf) {
+    return new ByteBufferInputStream(buf);
+  }
+
+  private final ByteBuffer buf;
+
+  ByteBufferInputStream(ByteBuffer buf) {
+    this.buf = checkNotNull(buf);
+  }
+
+  /**
+   * The wrapped buffer, for readers in this package that can
+   * work on it directly
+   */
+  ByteBuffer buffer() {
+    return buf;
+  }
+
+  @Override
+  public int read() {
+    return buf.hasRemaining() ?
+      buf.get() & 0xFF : -1;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) {
+    if (len == 0)
+      return 0;
+    if (!buf.hasRemaining())
+      return -1;
+    int c = min(len, buf.remaining());
+    buf.get(b, off, c);
+    return c;
+  }
+
+  @Override
+  public long skip(long n) {
+    int c = (int)min(n, buf.remaining());
+    if (c <= 0)
+      return 0;
+    buf.position(buf.position() + c);
+    return c;
+  }
+
+  @Override
+  public int available() {
+    return buf.remaining();
+  }
+
+}
@@ -0,0 +1,185 @@
+package snell.http2.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Open addressing hash map from int keys to objects. Keys are
+ * stored unboxed and there are no per-entry objects, so it stays
+ * compact with very large numbers of entries (e.g. one per open
+ * stream). Null values are not permitted. Not thread-safe.
+ */
+public final class IntObjectMap<V>
+  implements Iterable<V> {
+
+  private static final int MIN_CAPACITY = 8;
+
+  private int[] keys;
+  private Object[] vals;
+  private int size;
+  private int mask;
+
+  public IntObjectMap() {
+    this(MIN_CAPACITY);
+  }
+
+  public IntObjectMap(int expected) {
+    checkArgument(expected >= 0);
+    int cap = MIN_CAPACITY;
+    while (cap < expected * 2)
+      cap <<= 1;
+    init(cap);
+  }
+
+  private void init(int cap) {
+    this.keys = new int[cap];
+    this.vals = new Object[cap];
+    this.mask = cap - 1;
+    this.size = 0;
+  }
+
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private int find(int key) {
+    int i = hash(key) & mask;
+    while (vals[i] != null) {
+      if (keys[i] == key)
+        return i;
+      i = (i + 1) & mask;
+    }
+    return ~i;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(int key) {
+    int i = find(key);
+    return i >= 0 ? (V)vals[i] : null;
+  }
+
+  public boolean contains(int key) {
+    return find(key) >= 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V put(int key, V val) {
+    checkNotNull(val);
+    int i = find(key);
+    if (i >= 0) {
+      V old = (V)vals[i];
+      vals[i] = val;
+      return old;
+    }
+    if ((size + 1) * 2 > vals.length) {
+      grow();
+      i = find(key);
+    }
+    i = ~i;
+    keys[i] = key;
+    vals[i] = val;
+    size++;
+    return null;
+  }
+
+  /**
+   * Removes the mapping, shifting back any entries that probed
+   * past it so lookups never need tombstones
+   */
+  @SuppressWarnings("unchecked")
+  public V remove(int key) {
+    int i = find(key);
+    if (i < 0)
+      return null;
+    V old = (V)vals[i];
+    int gap = i;
+    int j = i;
+    while (true) {
+      j = (j + 1) & mask;
+      if (vals[j] == null)
+        break;
+      int home = hash(keys[j]) & mask;
+      // move j into the gap unless its home lies cyclically
+      // in (gap, j]
+      if (gap <= j ? (home <= gap || home > j) : (home <= gap && home > j)) {
+        keys[gap] = keys[j];
+        vals[gap] = vals[j];
+        gap = j;
+      }
+    }
+    vals[gap] = null;
+    size--;
+    return old;
+  }
+
+  private void grow() {
+    int[] okeys = keys;
+    Object[] ovals = vals;
+    init(vals.length << 1);
+    for (int n = 0; n < ovals.length; n++) {
+      if (ovals[n] != null) {
+        int i = ~find(okeys[n]);
+        keys[i] = okeys[n];
+        vals[i] = ovals[n];
+        size++;
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    Arrays.fill(vals, null);
+    size = 0;
+  }
+
+  public int[] keys() {
+    int[] res = new int[size];
+    int pos = 0;
+    for (int n = 0; n < vals.length; n++)
+      if (vals[n] != null)
+        res[pos++] = keys[n];
+    return res;
+  }
+
+  /**
+   * Iterates the values in no particular order. The map must
+   * not be modified during iteration.
+   */
+  public Iterator<V> iterator() {
+    return new Iterator<V>() {
+      private int n = advance(0);
+      private int advance(int i) {
+        while (i < vals.length && vals[i] == null)
+          i++;
+        return i;
+      }
+      public boolean hasNext() {
+        return n < vals.length;
+      }
+      @SuppressWarnings("unchecked")
+      public V next() {
+        if (!hasNext())
+          throw new NoSuchElementException();
+        V val = (V)vals[n];
+        n = advance(n + 1);
+        return val;
+      }
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+}
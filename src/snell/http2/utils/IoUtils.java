@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
@@ -57,29 +58,103 @@ public final class IoUtils {
   }
   
   public static byte[] long2uvarint(long num) {
-    if (num == 0) return new byte[] {0};
     byte[] buf = new byte[size(num)];
-    int pos = 0;
-    while(num != 0) {
-      long m = num >>> 7; // unsigned shift
-      buf[pos++] = (byte)((num & ~0x80) | (m > 0?0x80:0x00));
-      num = m;
-    }
+    putUvarint(buf, 0, num);
     return buf;
   }
 
   public static byte[] int2uvarint(int num) {
-    if (num == 0) return new byte[] {0};
     byte[] buf = new byte[size(num)];
-    int pos = 0;
-    while(num != 0) {
-      int m = num >>> 7; // unsigned shift
-      buf[pos++] = (byte)((num & ~0x80) | (m > 0?0x80:0x00));
-      num = m;
-    }
+    putUvarint(buf, 0, num);
     return buf;
   }
   
+  /**
+   * Writes num as a uvarint into buf at off, which must have 
+   * room for size(num) bytes. Returns the offset after it.
+   */
+  public static int putUvarint(
+    byte[] buf, 
+    int off, 
+    int num) {
+    // one and two byte values (indexes, string lengths) unrolled
+    if ((num & ~0x7F) == 0) {
+      buf[off] = (byte)num;
+      return off + 1;
+    }
+    if ((num & ~0x3FFF) == 0) {
+      buf[off] = (byte)(num | 0x80);
+      buf[off + 1] = (byte)(num >>> 7);
+      return off + 2;
+    }
+    return putUvarint(buf, off, num & 0xFFFFFFFFL);
+  }
+  
+  public static int putUvarint(
+    byte[] buf, 
+    int off, 
+    long num) {
+    while ((num & ~0x7FL) != 0) {
+      buf[off++] = (byte)(num | 0x80);
+      num >>>= 7;
+    }
+    buf[off++] = (byte)num;
+    return off;
+  }
+  
+  /**
+   * Writes num as a uvarint at the buffer's position
+   */
+  public static void putUvarint(
+    ByteBuffer buf, 
+    int num) {
+    if ((num & ~0x7F) == 0) {
+      buf.put((byte)num);
+    } else if ((num & ~0x3FFF) == 0) {
+      buf.putShort((short)((num | 0x80) << 8 | num >>> 7));
+    } else {
+      putUvarint(buf, num & 0xFFFFFFFFL);
+    }
+  }
+  
+  public static void putUvarint(
+    ByteBuffer buf, 
+    long num) {
+    while ((num & ~0x7FL) != 0) {
+      buf.put((byte)(num | 0x80));
+      num >>>= 7;
+    }
+    buf.put((byte)num);
+  }
+  
+  /**
+   * Writes num as a uvarint without building an array for it
+   */
+  public static void writeUvarint(
+    OutputStream out, 
+    int num) 
+      throws IOException {
+    if ((num & ~0x7F) == 0) {
+      out.write(num);
+    } else if ((num & ~0x3FFF) == 0) {
+      out.write(num | 0x80);
+      out.write(num >>> 7);
+    } else {
+      writeUvarint(out, num & 0xFFFFFFFFL);
+    }
+  }
+  
+  public static void writeUvarint(
+    OutputStream out, 
+    long num) 
+      throws IOException {
+    while ((num & ~0x7FL) != 0) {
+      out.write((int)num | 0x80);
+      num >>>= 7;
+    }
+    out.write((int)num);
+  }
+  
   public static byte[] int2uvarint(byte[] bytes) {
     if (bytes.length == 0) return new byte[] {0};
     return bytes.length == 4 ?
@@ -88,10 +163,14 @@ public final class IoUtils {
   }
   
   public static int uvarint2int(InputStream in) throws IOException {
+    if (in instanceof ByteBufferInputStream)
+      return uvarint2int(((ByteBufferInputStream)in).buffer());
     return (int)uvarint2long(in);
   }
   
   public static long uvarint2long(InputStream in) throws IOException {
+    if (in instanceof ByteBufferInputStream)
+      return uvarint2long(((ByteBufferInputStream)in).buffer());
     long l = 0;
     int r = -1, pos = 0;
     while((r = in.read()) > -1 && pos < 10) { // make sure we never read more than 10-bytes to prevent overflow
@@ -101,6 +180,38 @@ public final class IoUtils {
     }
     return l;
   }
+  
+  /**
+   * Reads a uvarint at the buffer's position, advancing it. Like
+   * the stream version, stops at the end of the buffer.
+   */
+  public static int uvarint2int(ByteBuffer buf) {
+    int p = buf.position();
+    if (buf.limit() - p >= 2) {
+      int b = buf.get(p);
+      if (b >= 0) {
+        buf.position(p + 1);
+        return b;
+      }
+      int b2 = buf.get(p + 1);
+      if (b2 >= 0) {
+        buf.position(p + 2);
+        return b & 0x7F | b2 << 7;
+      }
+    }
+    return (int)uvarint2long(buf);
+  }
+  
+  public static long uvarint2long(ByteBuffer buf) {
+    long l = 0;
+    for (int pos = 0; pos < 10 && buf.hasRemaining(); pos++) {
+      int r = buf.get();
+      l |= ((long)(r & 0x7F)) << (7 * pos);
+      if (r >= 0) 
+        break;
+    }
+    return l;
+  }
     
   public static void write24(
     OutputStream out, 
@@ -194,7 +305,7 @@ public final class IoUtils {
       buffer.write(0);
     else {
       byte[] data = ascii(s);
-      buffer.write(int2uvarint(data.length));
+      writeUvarint(buffer, data.length);
       buffer.write(data);
     }
   }
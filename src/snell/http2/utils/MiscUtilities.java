@@ -1,11 +1,12 @@
 package snell.http2.utils;
 
+import static java.lang.Math.min;
+
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
 import com.google.common.base.Function;
-import com.google.common.primitives.Longs;
 
 public final class MiscUtilities {
 
@@ -65,24 +66,26 @@ public final class MiscUtilities {
     if (v <= 0x7F & v >= 0) {
       return new byte[] {(byte)v};
     } else {
-      BitBucket bucket = 
-        new BitBucket();
       int n = log(v);
       int s = (n+2) >>> 3;
       s +=1;
-      bucket.storeBitsOn(s);
-      bucket.storeBitsOff(1);
-      
-      if (v < 0) {
-        bucket.storeBitsOff(7);
-        bucket.storeBits(Longs.toByteArray(v),64);
+      boolean neg = v < 0;
+      int w;
+      if (neg) {
+        w = 64;
       } else {
         v <<= ((8-(s+1))*8)+(s+1);
-        int w = 8*(s+1)-(s+1);
-        bucket.storeBits(Longs.toByteArray(v),w);        
+        w = min(64, 8*(s+1)-(s+1));
       }
-
-      return bucket.toByteArray();
+      byte[] ret = new byte[(s + 1 + (neg ? 7 : 0) + w + 7) / 8];
+      BitWriter bits = 
+        BitWriter.of(ret)
+          .writeBits(-1L, s)
+          .writeBits(0, 1);
+      if (neg)
+        bits.writeBits(0, 7);
+      bits.writeBits(v >>> (64 - w), w).flush();
+      return ret;
     }
     
     // 0 0000000
@@ -103,20 +106,21 @@ public final class MiscUtilities {
     if (v <= 0x7F & v >= 0) {
       return new byte[] {(byte)v};
     } else {
-      BitBucket bucket = 
-        new BitBucket();
       int n = log(v);
       byte s = (byte)((n+2) >>> 3);
-        
-      bucket.storeBits((byte)(s << 5), 3);
+      int w;
       if (s == 7) {
-        bucket.storeBits(Longs.toByteArray(v),64);
+        w = 64;
       } else {
         v <<= 63-n;
-        int w = 8*(s+1)-(s+1);
-        bucket.storeBits(Longs.toByteArray(v),w);        
+        w = min(64, 8*(s+1)-(s+1));
       }
-      return bucket.toByteArray();
+      byte[] ret = new byte[(3 + w + 7) / 8];
+      BitWriter.of(ret)
+        .writeBits(s, 3)
+        .writeBits(v >>> (64 - w), w)
+        .flush();
+      return ret;
     }
     
     // 0 0000000
@@ -8,8 +8,11 @@ import java.io.Writer;
 import java.util.Comparator;
 import java.util.Map;
 
-import snell.http2.utils.BitBucket;
+import snell.http2.utils.BitReader;
+import snell.http2.utils.BitWriter;
+import snell.http2.utils.BufferPool;
 import snell.http2.utils.IntPair;
+import snell.http2.utils.PooledBuffer;
 
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableMap;
@@ -26,12 +29,22 @@ public final class OldHuffman {
       throws IOException {
     if (data == null)
       return;
-    BitBucket bucket = 
-      new BitBucket();
-    for (char c : data.toCharArray())
-      bucket.storeBit32(codeTable.get(c));
-    bucket.storeBit32(codeTable.getEof());
-    bucket.writeTo(out);
+    PooledBuffer buf = 
+      BufferPool.heap().allocate((data.length() + 1) * 4);
+    try {
+      BitWriter bits = 
+        BitWriter.of(buf.array());
+      for (char c : data.toCharArray())
+        write(codeTable.get(c), bits);
+      write(codeTable.getEof(), bits);
+      out.write(buf.array(), 0, bits.flush().length());
+    } finally {
+      buf.release();
+    }
+  }
+  
+  private static void write(IntPair code, BitWriter bits) {
+    bits.writeBits(code.one() >>> (32 - code.two()), code.two());
   }
   
   public static void decode(
@@ -42,9 +55,7 @@ public final class OldHuffman {
       OutputStreamWriter sw = 
         new OutputStreamWriter(
           out, "ISO-8859-1");
-      BitBucket buf = 
-        new BitBucket(bytes);
-      codeTable.decodeFrom(buf, sw);
+      codeTable.decodeFrom(BitReader.of(bytes), sw);
       sw.flush();
   }
   
@@ -89,10 +100,10 @@ public final class OldHuffman {
       builder.decode.build();
     for (Map.Entry<IntPair,Character> entry : decode.entrySet()) {
       Node node = root;
-      BitBucket b = new BitBucket(entry.getKey().one());
+      BitReader b = BitReader.of(Ints.toByteArray(entry.getKey().one()));
       int l = entry.getKey().two();
       while(l > 0) {
-        boolean d = b.getBit();
+        boolean d = b.readBit();
         Node n = node.get(d);
         if (n == null)
           node = node.set(d, new Node());
@@ -104,13 +115,13 @@ public final class OldHuffman {
   }
   
   private int decodeFrom(
-    BitBucket bit, 
+    BitReader bit, 
     Writer w) 
       throws IOException {
     int c = 0;
     Node node = root;
     while(true) {
-      boolean b = bit.getBit();
+      boolean b = bit.readBit();
       node = node.get(b);
       c++;
       if (node.sym() != null) {
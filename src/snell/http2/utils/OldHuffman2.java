@@ -9,9 +9,12 @@ import java.io.Writer;
 import java.util.Comparator;
 import java.util.Map;
 
-import snell.http2.utils.BitBucket;
+import snell.http2.utils.BitReader;
+import snell.http2.utils.BitWriter;
+import snell.http2.utils.BufferPool;
 import snell.http2.utils.CodepointIterator;
 import snell.http2.utils.IntPair;
+import snell.http2.utils.PooledBuffer;
 
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableMap;
@@ -28,25 +31,35 @@ public final class OldHuffman2 {
       throws IOException {
     if (data == null)
       return;
-    BitBucket bucket = 
-      new BitBucket();
-    CodepointIterator ci = CodepointIterator.getInstance(data);
-    while(ci.hasNext()) {
-      int cp = ci.next();
-      if (cp <= 256)
-        bucket.storeBit32(codeTable.get(cp));
-      else
-        storeUtf8Codepoint(cp,codeTable,bucket);
+    // a code is at most 32 bits, plus 31 for a codepoint
+    PooledBuffer buf = 
+      BufferPool.heap().allocate((data.length() + 1) * 8);
+    try {
+      BitWriter bits = 
+        BitWriter.of(buf.array());
+      CodepointIterator ci = CodepointIterator.getInstance(data);
+      while(ci.hasNext()) {
+        int cp = ci.next();
+        if (cp <= 256)
+          write(codeTable.get(cp), bits);
+        else
+          storeUtf8Codepoint(cp,codeTable,bits);
+      }
+      write(codeTable.getEof(), bits);
+      out.write(buf.array(), 0, bits.flush().length());
+    } finally {
+      buf.release();
     }
-    bucket.storeBit32(codeTable.getEof());
-    bucket.writeTo(out);
+  }
+  
+  private static void write(IntPair code, BitWriter bits) {
+    bits.writeBits(code.one() >>> (32 - code.two()), code.two());
   }
   
   private static final void storeUtf8Codepoint(
     int cp, 
     OldHuffman2 codeTable, 
-    BitBucket bucket)
-      throws IOException { 
+    BitWriter bits) { 
     int leading = 0;
     int pad_bits = 0;
     if (cp >= 0x80 && cp <= 0x07FF) {
@@ -65,15 +78,14 @@ public final class OldHuffman2 {
       leading = 261;
       pad_bits = 31;
     }
-    cp <<= 32 - pad_bits;
-    bucket.storeBit32(codeTable.get(leading));
-    bucket.storeBit32(cp,pad_bits);
+    write(codeTable.get(leading), bits);
+    bits.writeBits(cp, pad_bits);
   }
   
   
   private static void decodeUtf8Codepoint(
     int sym, 
-    BitBucket bucket, 
+    BitReader bits, 
     Writer w) 
       throws IOException {
     int bit_len = 0;
@@ -94,12 +106,7 @@ public final class OldHuffman2 {
       bit_len = 31;
       break;
     }
-    byte[] bytes = 
-      bucket.getBits(bit_len);
-    int cp = 0;
-    for (int n = 0; n < bytes.length; n++)
-      cp |= bytes[n] << ((3-n)*8);
-    cp >>>= (32 - bit_len);
+    int cp = bits.readBits(bit_len);
     w.write(Character.toChars(cp)); // TODO: handle unsupported codepoints..?
   }
   
@@ -111,9 +118,7 @@ public final class OldHuffman2 {
       OutputStreamWriter sw = 
         new OutputStreamWriter(
           out, "UTF-8");
-      BitBucket buf = 
-        new BitBucket(bytes);
-      codeTable.decodeFrom(buf, sw);
+      codeTable.decodeFrom(BitReader.of(bytes), sw);
       sw.flush();
   }
   
@@ -158,10 +163,10 @@ public final class OldHuffman2 {
       builder.decode.build();
     for (Map.Entry<IntPair,Integer> entry : decode.entrySet()) {
       Node node = root;
-      BitBucket b = new BitBucket(entry.getKey().one());
+      BitReader b = BitReader.of(Ints.toByteArray(entry.getKey().one()));
       int l = entry.getKey().two();
       while(l > 0) {
-        boolean d = b.getBit();
+        boolean d = b.readBit();
         Node n = node.get(d);
         if (n == null)
           node = node.set(d, new Node());
@@ -173,13 +178,13 @@ public final class OldHuffman2 {
   }
   
   private int decodeFrom(
-    BitBucket bit, 
+    BitReader bit, 
     Writer w) 
       throws IOException {
     int c = 0;
     Node node = root;
     while(true) {
-      boolean b = bit.getBit();
+      boolean b = bit.readBit();
       node = node.get(b);
       c++;
       if (node.sym() != null) {
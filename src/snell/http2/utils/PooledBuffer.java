@@ -0,0 +1,99 @@
+package snell.http2.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted buffer drawn from a BufferPool. The buffer
+ * starts with a count of one; each retain() must be balanced by a
+ * release(), and the last release() hands the storage back to the
+ * pool. The ByteBuffer must not be touched after that point.
+ */
+public final class PooledBuffer {
+
+  private final BufferPool pool;
+  private final int size_class;
+  private final ByteBuffer buf;
+  private final AtomicInteger refs =
+    new AtomicInteger();
+  private BufferPool.Leak leak;
+
+  PooledBuffer(
+    BufferPool pool,
+    int size_class,
+    ByteBuffer buf) {
+    this.pool = pool;
+    this.size_class = size_class;
+    this.buf = buf;
+  }
+
+  void init(int capacity) {
+    refs.set(1);
+    buf.clear();
+    buf.limit(capacity);
+  }
+
+  void track(BufferPool.Leak leak) {
+    this.leak = leak;
+  }
+
+  int sizeClass() {
+    return size_class;
+  }
+
+  /**
+   * The pooled storage. Position and limit are the caller's
+   * to manage; capacity may exceed the size requested.
+   */
+  public ByteBuffer buffer() {
+    return buf;
+  }
+
+  public boolean hasArray() {
+    return buf.hasArray();
+  }
+
+  public byte[] array() {
+    return buf.array();
+  }
+
+  public int capacity() {
+    return buf.capacity();
+  }
+
+  public int refCount() {
+    return refs.get();
+  }
+
+  public PooledBuffer retain() {
+    while(true) {
+      int r = refs.get();
+      if (r <= 0)
+        throw new IllegalStateException();
+      if (refs.compareAndSet(r, r + 1))
+        return this;
+    }
+  }
+
+  /**
+   * Returns true if this released the last reference
+   */
+  public boolean release() {
+    while(true) {
+      int r = refs.get();
+      if (r <= 0)
+        throw new IllegalStateException();
+      if (refs.compareAndSet(r, r - 1)) {
+        if (r > 1)
+          return false;
+        if (leak != null) {
+          leak.close();
+          leak = null;
+        }
+        pool.recycle(this);
+        return true;
+      }
+    }
+  }
+
+}
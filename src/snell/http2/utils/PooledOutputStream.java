@@ -0,0 +1,201 @@
+package snell.http2.utils;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkPositionIndex;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A growable OutputStream over pooled storage, used in place of
+ * ByteArrayOutputStream for short-lived scratch buffers. Nothing
+ * is allocated until the first write. Growing swaps in a larger
+ * pooled buffer and releases the old one. Call release() when
+ * done, or detach() to take ownership of the written bytes.
+ */
+public final class PooledOutputStream
+  extends OutputStream {
+
+  private static final int DEFAULT_INITIAL = 256;
+
+  private final BufferPool pool;
+  private final int initial;
+  private PooledBuffer buf;
+
+  public PooledOutputStream() {
+    this(BufferPool.heap(), DEFAULT_INITIAL);
+  }
+
+  public PooledOutputStream(int initial) {
+    this(BufferPool.heap(), initial);
+  }
+
+  public PooledOutputStream(
+    BufferPool pool,
+    int initial) {
+    this.pool = checkNotNull(pool);
+    this.initial = max(1, initial);
+  }
+
+  private ByteBuffer ensure(int c) {
+    if (buf == null) {
+      buf = pool.allocate(max(initial, c));
+      buf.buffer().limit(buf.capacity());
+    } else {
+      ByteBuffer b = buf.buffer();
+      if (b.remaining() < c) {
+        int need = b.position() + c;
+        PooledBuffer nbuf =
+          pool.allocate(max(need, b.capacity() * 2));
+        ByteBuffer nb = nbuf.buffer();
+        nb.limit(nbuf.capacity());
+        b.flip();
+        nb.put(b);
+        buf.release();
+        buf = nbuf;
+      }
+    }
+    return buf.buffer();
+  }
+
+  @Override
+  public void write(int b) {
+    ensure(1).put((byte)b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    if (len == 0)
+      return;
+    ensure(len).put(b, off, len);
+  }
+
+  public void write(ByteBuffer src) {
+    ensure(src.remaining()).put(src);
+  }
+
+  /**
+   * Performs a single read of at most c bytes from the stream
+   * directly into the pooled storage. Returns the number of
+   * bytes read or -1 at end of stream.
+   */
+  public int readFrom(InputStream in, int c)
+    throws IOException {
+    ByteBuffer b = ensure(c);
+    int n = -1;
+    if (b.hasArray()) {
+      n = in.read(b.array(), b.arrayOffset() + b.position(), c);
+      if (n > 0)
+        b.position(b.position() + n);
+    } else {
+      byte[] tmp = new byte[c];
+      n = in.read(tmp);
+      if (n > 0)
+        b.put(tmp, 0, n);
+    }
+    return n;
+  }
+
+  public int size() {
+    return buf != null ? buf.buffer().position() : 0;
+  }
+
+  /**
+   * Overwrites a byte already written, e.g. a count reserved ahead
+   * of the content it counts
+   */
+  public void patch(int index, int b) {
+    checkElementIndex(index, size());
+    buf.buffer().put(index, (byte)b);
+  }
+
+  /**
+   * Inserts a byte at index, shifting everything written after it
+   * along by one. For the rare prefix that turns out to be needed
+   * only once its content has been written.
+   */
+  public void insert(int index, int b) {
+    checkPositionIndex(index, size());
+    ByteBuffer bb = ensure(1);
+    int end = bb.position();
+    if (bb.hasArray()) {
+      byte[] a = bb.array();
+      int off = bb.arrayOffset();
+      System.arraycopy(a, off + index, a, off + index + 1, end - index);
+    } else {
+      for (int i = end; i > index; i--)
+        bb.put(i, bb.get(i - 1));
+    }
+    bb.put(index, (byte)b);
+    bb.position(end + 1);
+  }
+
+  public void reset() {
+    if (buf != null)
+      buf.buffer().position(0);
+  }
+
+  /**
+   * Copies the written bytes to the given stream
+   */
+  public void writeTo(OutputStream out)
+    throws IOException {
+    if (buf == null)
+      return;
+    ByteBuffer b = buf.buffer();
+    if (b.hasArray()) {
+      out.write(b.array(), b.arrayOffset(), b.position());
+    } else {
+      ByteBuffer dup = b.duplicate();
+      dup.flip();
+      byte[] chunk = new byte[min(dup.remaining(), 4096)];
+      while (dup.hasRemaining()) {
+        int c = min(chunk.length, dup.remaining());
+        dup.get(chunk, 0, c);
+        out.write(chunk, 0, c);
+      }
+    }
+  }
+
+  public byte[] toByteArray() {
+    byte[] ret = new byte[size()];
+    if (buf != null) {
+      ByteBuffer dup = buf.buffer().duplicate();
+      dup.flip();
+      dup.get(ret);
+    }
+    return ret;
+  }
+
+  /**
+   * Hands ownership of the written bytes to the caller, with
+   * position zero and limit at the end of the written data.
+   * Returns null if nothing was written. The stream is left
+   * empty and may be reused.
+   */
+  public PooledBuffer detach() {
+    PooledBuffer ret = buf;
+    buf = null;
+    if (ret != null)
+      ret.buffer().flip();
+    return ret;
+  }
+
+  public void release() {
+    if (buf != null) {
+      buf.release();
+      buf = null;
+    }
+  }
+
+  @Override
+  public void close() {
+    release();
+  }
+
+}
@@ -56,7 +56,7 @@ public final class RangedIntegerSupplier
   }
   
   public static RangedIntegerSupplier forAllOddIntegers() {
-    return forAllEvenIntegers(Integer.MAX_VALUE);
+    return forAllOddIntegers(Integer.MAX_VALUE);
   }
   
   public static RangedIntegerSupplier forAllEvenIntegers(int max) {
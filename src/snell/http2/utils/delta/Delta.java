@@ -24,6 +24,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
+import snell.http2.headers.HeaderName;
 import snell.http2.headers.HeaderSet;
 import snell.http2.headers.HeaderSetter;
 import snell.http2.headers.Huffman;
@@ -283,12 +284,12 @@ public final class Delta {
             Operation.makeToggl(idx));
       }
       // Now go through the current header set to see what we're turning on
-      for (String key : headers)
+      for (HeaderName key : headers)
         for (ValueSupplier<?> val : headers.get(key))
           processKv(
             group, 
             storage, 
-            key, 
+            key.toString(), 
             val,
             instructions);
       // Once we have constructed our set of operations,
@@ -1,7 +1,7 @@
 package snell.http2.utils.delta;
 
-import static snell.http2.utils.IoUtils.int2uvarint;
 import static snell.http2.utils.IoUtils.uvarint2int;
+import static snell.http2.utils.IoUtils.writeUvarint;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -169,7 +169,7 @@ public abstract class Operation {
       OutputStream buf) 
         throws IOException {
       super.writeTo(buf);
-      buf.write(int2uvarint(index));
+      writeUvarint(buf, index);
     }
     public int index() {
       return index;
@@ -239,8 +239,8 @@ public abstract class Operation {
       OutputStream buf) 
         throws IOException {
       super.writeTo(buf);
-      buf.write(int2uvarint(s));
-      buf.write(int2uvarint(e));
+      writeUvarint(buf, s);
+      writeUvarint(buf, e);
     }
     public int start() {
       return s;
@@ -321,7 +321,7 @@ public abstract class Operation {
       OutputStream buf) 
         throws IOException {
       super.writeTo(buf);
-      buf.write(int2uvarint(index));
+      writeUvarint(buf, index);
       buf.write(val.flags());
       val.writeTo(buf);
     }
@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import snell.http2.headers.HeaderName;
 import snell.http2.headers.HeaderSerializer;
 import snell.http2.headers.HeaderSet;
 import snell.http2.headers.HeaderSetter;
@@ -54,8 +55,8 @@ public class HeaderDiffHeaderSerializer
     Mode mode = 
       hd.mode();
     
-    for(String key : map) {
-      Name name =  names.nameFor(key);
+    for(HeaderName key : map) {
+      Name name =  names.nameFor(key.toString());
       for (ValueSupplier<?> value : map.get(key)) {
         HeaderBuilder<?,?> builder = null;
         String val = 
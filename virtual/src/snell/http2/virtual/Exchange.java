@@ -0,0 +1,164 @@
+package snell.http2.virtual;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+
+import snell.http2.frames.HeadersFrame;
+import snell.http2.frames.HeadersFrame.HeadersFrameBuilder;
+import snell.http2.frames.Status;
+import snell.http2.session.Http2Stream;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Multimap;
+
+/**
+ * One request/response on a stream, as seen from the handler's
+ * virtual thread. Responding is optional: the first write to the
+ * response body (or the handler returning) sends a plain 200.
+ */
+public final class Exchange {
+
+  private final Http2Stream stream;
+  private final HeadersFrame request;
+  private final RequestBody in;
+  private final ResponseBody out;
+  private volatile Status reset;
+  private boolean committed;
+
+  Exchange(
+    Http2Stream stream,
+    HeadersFrame request,
+    RequestBody in,
+    int frame_size,
+    int limit) {
+    this.stream = stream;
+    this.request = request;
+    this.in = in;
+    this.out = new ResponseBody(this, frame_size, limit);
+  }
+
+  public int streamId() {
+    return stream.id();
+  }
+
+  Http2Stream stream() {
+    return stream;
+  }
+
+  /**
+   * The request HEADERS
+   */
+  public HeadersFrame request() {
+    return request;
+  }
+
+  /**
+   * The request body. Blocks until DATA arrives; returns -1 once
+   * the client has ended the stream.
+   */
+  public InputStream requestBody() {
+    return in;
+  }
+
+  /**
+   * The response body. close() ends the stream.
+   */
+  public OutputStream responseBody() {
+    return out;
+  }
+
+  public void respond(int status)
+    throws IOException {
+    respond(status, ImmutableMultimap.<String,String>of());
+  }
+
+  /**
+   * Sends the response HEADERS. Must come before anything is
+   * written to the response body.
+   */
+  public void respond(
+    final int status,
+    Multimap<String,String> headers)
+      throws IOException {
+    checkNotNull(headers);
+    checkState(!committed, "Response already started");
+    checkNotReset();
+    committed = true;
+    // the header encoder is per connection, so the frame is built
+    // on the event loop in the order it is sent
+    final ImmutableMultimap<String,String> copy =
+      ImmutableMultimap.copyOf(headers);
+    stream.session().execute(() -> {
+      if (reset != null)
+        return;
+      HeadersFrameBuilder builder =
+        stream.headers()
+          .set(":status", Integer.toString(status));
+      for (Map.Entry<String,Collection<String>> e :
+             copy.asMap().entrySet())
+        builder.set(
+          e.getKey(),
+          e.getValue().toArray(new String[e.getValue().size()]));
+      stream.send(builder.get());
+    });
+  }
+
+  public boolean isCommitted() {
+    return committed;
+  }
+
+  /**
+   * Abandons the exchange, resetting the stream
+   */
+  public void reset(final Status status) {
+    checkNotNull(status);
+    if (reset != null)
+      return;
+    reset = status;
+    in.reset(status);
+    stream.session().execute(() -> stream.reset(status));
+  }
+
+  public boolean isReset() {
+    return reset != null;
+  }
+
+  void commit()
+    throws IOException {
+    if (!committed)
+      respond(200);
+  }
+
+  void checkNotReset()
+    throws IOException {
+    Status status = reset;
+    if (status != null)
+      throw new IOException("Stream reset: " + status);
+  }
+
+  /**
+   * Called on the event loop when the peer resets the stream or
+   * the session goes away
+   */
+  void onReset(Status status) {
+    reset = status;
+    in.reset(status);
+  }
+
+  /**
+   * Completes the response once the handler has returned
+   */
+  void finish()
+    throws IOException {
+    in.close();
+    if (reset == null)
+      out.close();
+  }
+
+}
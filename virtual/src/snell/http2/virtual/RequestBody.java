@@ -0,0 +1,189 @@
+package snell.http2.virtual;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import snell.http2.frames.Status;
+import snell.http2.session.Http2Stream;
+
+/**
+ * Blocking view of the request's DATA frames. The event loop
+ * copies each payload in with offer(); bytes are credited back to
+ * the peer's flow control window only once the handler has read
+ * them, so a slow handler holds the client back rather than
+ * buffering without bound.
+ */
+final class RequestBody
+  extends InputStream {
+
+  private final Http2Stream stream;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition readable = lock.newCondition();
+  private final ArrayDeque<ByteBuffer> chunks =
+    new ArrayDeque<ByteBuffer>();
+  private boolean ended;
+  private Status reset;
+  private boolean closed;
+
+  RequestBody(Http2Stream stream) {
+    this.stream = stream;
+  }
+
+  /* Event loop side */
+
+  void offer(ByteBuffer payload) {
+    if (!payload.hasRemaining())
+      return;
+    ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+    copy.put(payload).flip();
+    lock.lock();
+    try {
+      if (closed) {
+        stream.consumed(copy.remaining());
+        return;
+      }
+      chunks.addLast(copy);
+      readable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void end() {
+    lock.lock();
+    try {
+      ended = true;
+      readable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void reset(Status status) {
+    lock.lock();
+    try {
+      reset = status;
+      readable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /* Handler side */
+
+  /**
+   * Waits for data. Returns the head chunk, or null at the end
+   * of the body.
+   */
+  private ByteBuffer head()
+    throws IOException {
+    while (chunks.isEmpty()) {
+      if (closed)
+        throw new IOException("Stream closed");
+      if (reset != null)
+        throw new IOException("Stream reset: " + reset);
+      if (ended)
+        return null;
+      try {
+        readable.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+    return chunks.peekFirst();
+  }
+
+  private void taken(ByteBuffer chunk) {
+    if (!chunk.hasRemaining()) {
+      chunks.pollFirst();
+      credit(chunk.capacity());
+    }
+  }
+
+  private void credit(final int bytes) {
+    stream.session().execute(() -> stream.consumed(bytes));
+  }
+
+  @Override
+  public int read()
+    throws IOException {
+    lock.lock();
+    try {
+      ByteBuffer chunk = head();
+      if (chunk == null)
+        return -1;
+      int b = chunk.get() & 0xFF;
+      taken(chunk);
+      return b;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len)
+    throws IOException {
+    if (len == 0)
+      return 0;
+    lock.lock();
+    try {
+      ByteBuffer chunk = head();
+      if (chunk == null)
+        return -1;
+      int n = 0;
+      // take what's already buffered, without waiting for more
+      while (chunk != null && n < len) {
+        int c = Math.min(len - n, chunk.remaining());
+        chunk.get(b, off + n, c);
+        n += c;
+        taken(chunk);
+        chunk = chunks.peekFirst();
+      }
+      return n;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int available() {
+    lock.lock();
+    try {
+      int n = 0;
+      for (ByteBuffer chunk : chunks)
+        n += chunk.remaining();
+      return n;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Discards anything unread, crediting it back to the peer
+   */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      if (closed)
+        return;
+      closed = true;
+      int n = 0;
+      for (ByteBuffer chunk : chunks)
+        n += chunk.capacity();
+      chunks.clear();
+      if (n > 0)
+        credit(n);
+      readable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
@@ -0,0 +1,21 @@
+package snell.http2.virtual;
+
+import java.io.IOException;
+
+/**
+ * Application code for one stream. Runs on its own virtual
+ * thread, so it may block freely on the request and response
+ * bodies.
+ */
+@FunctionalInterface
+public interface RequestHandler {
+
+  /**
+   * Handles the exchange. The response is completed when this
+   * returns; if it throws, the stream is reset.
+   */
+  void handle(
+    Exchange exchange)
+      throws IOException;
+
+}
@@ -0,0 +1,161 @@
+package snell.http2.virtual;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import snell.http2.frames.DataFrame;
+import snell.http2.session.Http2Stream;
+
+/**
+ * Blocking OutputStream that turns writes into DATA frames. At
+ * most limit bytes are queued on the stream at once; past that the
+ * writer waits until the session has written them, which it only
+ * does as the peer's flow control window allows.
+ */
+final class ResponseBody
+  extends OutputStream {
+
+  private final Exchange exchange;
+  private final Http2Stream stream;
+  private final byte[] buffer;
+  private final int limit;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition drained = lock.newCondition();
+  private int count;
+  private int outstanding;
+  private boolean waiting;
+  private boolean closed;
+
+  ResponseBody(
+    Exchange exchange,
+    int frame_size,
+    int limit) {
+    this.exchange = exchange;
+    this.stream = exchange.stream();
+    this.buffer = new byte[frame_size];
+    this.limit = limit;
+  }
+
+  @Override
+  public void write(int b)
+    throws IOException {
+    ensureOpen();
+    if (count == buffer.length)
+      emit(false);
+    buffer[count++] = (byte)b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len)
+    throws IOException {
+    ensureOpen();
+    while (len > 0) {
+      if (count == buffer.length)
+        emit(false);
+      int c = Math.min(len, buffer.length - count);
+      System.arraycopy(b, off, buffer, count, c);
+      count += c;
+      off += c;
+      len -= c;
+    }
+  }
+
+  /**
+   * Sends whatever is buffered without ending the stream
+   */
+  @Override
+  public void flush()
+    throws IOException {
+    ensureOpen();
+    if (count > 0)
+      emit(false);
+  }
+
+  /**
+   * Sends the remainder and ends the stream
+   */
+  @Override
+  public void close()
+    throws IOException {
+    if (closed)
+      return;
+    emit(true);
+    closed = true;
+  }
+
+  boolean isClosed() {
+    return closed;
+  }
+
+  private void ensureOpen()
+    throws IOException {
+    if (closed)
+      throw new IOException("Response body closed");
+    exchange.checkNotReset();
+  }
+
+  private void emit(boolean fin)
+    throws IOException {
+    exchange.commit();
+    final DataFrame frame =
+      DataFrame.make()
+        .streamId(stream.id())
+        .fin(fin)
+        .fill(new ByteArrayInputStream(buffer, 0, count), count)
+        .get();
+    final int size = count;
+    count = 0;
+    boolean wait;
+    lock.lock();
+    try {
+      outstanding += size;
+      wait = outstanding >= limit;
+      waiting = wait;
+    } finally {
+      lock.unlock();
+    }
+    stream.session().execute(() -> {
+      if (exchange.isReset()) {
+        frame.release();
+        signal();
+        return;
+      }
+      stream.send(frame);
+      if (wait)
+        stream.whenDrained(this::signal);
+    });
+    if (wait)
+      await();
+  }
+
+  private void signal() {
+    lock.lock();
+    try {
+      outstanding = 0;
+      waiting = false;
+      drained.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void await()
+    throws IOException {
+    lock.lock();
+    try {
+      while (waiting)
+        drained.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } finally {
+      lock.unlock();
+    }
+    exchange.checkNotReset();
+  }
+
+}
@@ -0,0 +1,275 @@
+package snell.http2.virtual;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import snell.http2.frames.DataFrame;
+import snell.http2.frames.HeadersFrame;
+import snell.http2.frames.Status;
+import snell.http2.headers.dhe.Dhe;
+import snell.http2.session.EventLoopGroup;
+import snell.http2.session.FlowController;
+import snell.http2.session.Http2Server;
+import snell.http2.session.Http2Session;
+import snell.http2.session.Http2Stream;
+import snell.http2.session.SessionListener;
+import snell.http2.session.StreamHandler;
+
+import com.google.common.base.Supplier;
+
+/**
+ * HTTP/2 server that runs each stream's RequestHandler on its own
+ * virtual thread. Connection I/O, framing and flow control stay on
+ * the non-blocking event loops; handlers see blocking request and
+ * response streams, and block whenever flow control says the peer
+ * isn't ready.
+ *
+ * <code><pre>
+ * VirtualThreadServer server =
+ *   VirtualThreadServer.make(8080)
+ *     .handler(exchange -> {
+ *       exchange.respond(200);
+ *       exchange.responseBody().write(bytes);
+ *     })
+ *     .get()
+ *     .start();
+ * </pre></code>
+ */
+public final class VirtualThreadServer {
+
+  private static final Log log =
+    LogFactory.getLog(VirtualThreadServer.class);
+
+  public static final int DEFAULT_FRAME_SIZE = 0x4000;
+  public static final int DEFAULT_BUFFER_LIMIT = 0x10000;
+
+  public static VirtualThreadServerBuilder make(
+    SocketAddress address) {
+    return new VirtualThreadServerBuilder(address);
+  }
+
+  public static VirtualThreadServerBuilder make(int port) {
+    return make(new InetSocketAddress(port));
+  }
+
+  public static final class VirtualThreadServerBuilder
+    implements Supplier<VirtualThreadServer> {
+
+    private final SocketAddress address;
+    private EventLoopGroup group;
+    private RequestHandler handler;
+    private int window = FlowController.DEFAULT_WINDOW_SIZE;
+    private int max_streams =
+      Http2Session.DEFAULT_MAX_CONCURRENT_STREAMS;
+    private int table_size = Dhe.DEFAULT_TABLE_SIZE;
+    private int table_entries = Dhe.DEFAULT_TABLE_ENTRIES;
+    private int frame_size = DEFAULT_FRAME_SIZE;
+    private int limit = DEFAULT_BUFFER_LIMIT;
+
+    VirtualThreadServerBuilder(SocketAddress address) {
+      this.address = checkNotNull(address);
+    }
+
+    /**
+     * The event loops for connection I/O. Defaults to a group
+     * owned (and shut down) by the server.
+     */
+    public VirtualThreadServerBuilder group(EventLoopGroup group) {
+      this.group = checkNotNull(group);
+      return this;
+    }
+
+    public VirtualThreadServerBuilder handler(RequestHandler handler) {
+      this.handler = checkNotNull(handler);
+      return this;
+    }
+
+    /**
+     * The receive window per stream, i.e. how much of a request
+     * body may arrive before the handler reads it
+     */
+    public VirtualThreadServerBuilder initialWindowSize(int size) {
+      checkArgument(size > 0);
+      this.window = size;
+      return this;
+    }
+
+    public VirtualThreadServerBuilder maxConcurrentStreams(int max) {
+      checkArgument(max > 0);
+      this.max_streams = max;
+      return this;
+    }
+
+    /**
+     * Most bytes of request header table each connection may 
+     * have the server hold
+     */
+    public VirtualThreadServerBuilder headerTableSize(int size) {
+      checkArgument(size >= 0);
+      this.table_size = size;
+      return this;
+    }
+
+    public VirtualThreadServerBuilder headerTableEntries(int entries) {
+      checkArgument(entries >= 0);
+      this.table_entries = entries;
+      return this;
+    }
+
+    /**
+     * Largest DATA frame written from a response body
+     */
+    public VirtualThreadServerBuilder frameSize(int size) {
+      checkArgument(size > 0 && size <= DataFrame.DEFAULT_MAX_SIZE);
+      this.frame_size = size;
+      return this;
+    }
+
+    /**
+     * Response bytes that may be queued on a stream before
+     * the handler blocks
+     */
+    public VirtualThreadServerBuilder bufferLimit(int bytes) {
+      checkArgument(bytes > 0);
+      this.limit = bytes;
+      return this;
+    }
+
+    public VirtualThreadServer get() {
+      checkState(handler != null);
+      return new VirtualThreadServer(this);
+    }
+  }
+
+  private final RequestHandler handler;
+  private final EventLoopGroup group;
+  private final boolean own_group;
+  private final int frame_size;
+  private final int limit;
+  private final Http2Server server;
+  private final ThreadFactory threads =
+    Thread.ofVirtual()
+      .name("h2-stream-", 0)
+      .factory();
+
+  protected VirtualThreadServer(
+    VirtualThreadServerBuilder builder) {
+    this.handler = builder.handler;
+    this.own_group = builder.group == null;
+    this.group = own_group ?
+      EventLoopGroup.make().name("h2-io").get() :
+      builder.group;
+    this.frame_size = builder.frame_size;
+    this.limit = builder.limit;
+    this.server =
+      Http2Server.make(builder.address)
+        .group(group)
+        .listener(new Listener())
+        .initialWindowSize(builder.window)
+        .maxConcurrentStreams(builder.max_streams)
+        .headerTableSize(builder.table_size)
+        .headerTableEntries(builder.table_entries)
+        .get();
+  }
+
+  public VirtualThreadServer start()
+    throws IOException {
+    server.start();
+    return this;
+  }
+
+  public SocketAddress address() {
+    return server.address();
+  }
+
+  /**
+   * Stops accepting. If the server owns its event loops they are
+   * shut down too, closing established sessions.
+   */
+  public void close() {
+    server.close();
+    if (own_group)
+      group.shutdown();
+  }
+
+  private void run(Exchange exchange) {
+    try {
+      handler.handle(exchange);
+      exchange.finish();
+    } catch (Exception e) {
+      if (!exchange.isReset())
+        log.warn("Request handler failed", e);
+      exchange.reset(Status.INTERNAL_ERROR);
+    }
+  }
+
+  private final class Listener
+    implements SessionListener {
+
+    public StreamHandler onStream(Http2Stream stream) {
+      if (stream.promise() != null)
+        return null;
+      stream.manualFlowControl();
+      return new Dispatcher(new RequestBody(stream));
+    }
+
+    public void onClose(Http2Session session) {}
+
+  }
+
+  /**
+   * Feeds one stream's frames to its exchange, on the event loop
+   */
+  private final class Dispatcher
+    implements StreamHandler {
+
+    private final RequestBody body;
+    private Exchange exchange;
+
+    Dispatcher(RequestBody body) {
+      this.body = body;
+    }
+
+    public void onHeaders(
+      Http2Stream stream,
+      HeadersFrame frame) {
+      if (exchange == null) {
+        final Exchange exchange =
+          new Exchange(stream, frame, body, frame_size, limit);
+        this.exchange = exchange;
+        threads.newThread(() -> run(exchange)).start();
+      }
+      // trailers are dropped
+      if (frame.fin())
+        body.end();
+    }
+
+    public void onData(
+      Http2Stream stream,
+      DataFrame frame) {
+      body.offer(frame.payload());
+      if (frame.fin())
+        body.end();
+    }
+
+    public void onReset(
+      Http2Stream stream,
+      Status status) {
+      if (exchange != null)
+        exchange.onReset(status);
+      else
+        body.reset(status);
+    }
+
+  }
+
+}